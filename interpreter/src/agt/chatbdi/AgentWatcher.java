@@ -0,0 +1,220 @@
+package chatbdi;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jason.JasonException;
+import jason.asSyntax.*;
+import jason.asSemantics.Agent;
+import jason.bb.BeliefBase;
+import jason.bb.ChainBBAdapter;
+import jason.pl.PlanLibrary;
+import jason.pl.PlanLibraryListener;
+
+/**
+ * An AgentWatcher records the changes of the belief base and of the plan library of an agent.
+ * The belief base is wrapped by a chain adapter and the plan library notifies the watcher through a listener:
+ * the changes are queued and applied to the embedding space only when it is needed, so the cost of an update
+ * depends on what changed and not on the size of the agent.
+ * @author Andrea Gatti
+ */
+public class AgentWatcher implements PlanLibraryListener {
+
+    /** The name of the watched agent */
+    private final String agName;
+    /** The watched agent */
+    private final transient Agent ag;
+
+    /** The beliefs added since the last drain */
+    private final Queue<Literal> addedBeliefs = new ConcurrentLinkedQueue<>();
+    /** The beliefs removed since the last drain */
+    private final Queue<Literal> removedBeliefs = new ConcurrentLinkedQueue<>();
+    /** The plans added since the last drain */
+    private final Queue<Plan> addedPlans = new ConcurrentLinkedQueue<>();
+    /** The plans removed since the last drain */
+    private final Queue<Plan> removedPlans = new ConcurrentLinkedQueue<>();
+    /** true if the belief base was cleared or abolished: the agent must be fully scanned */
+    private final AtomicBoolean resync = new AtomicBoolean( false );
+    /** The adapter wrapping the belief base (null if not installed) */
+    private TrackingBB tracking;
+    /** false once uninstalled: an adapter that could not be removed stops recording */
+    private volatile boolean recording = true;
+
+    /**
+     * Build a watcher for an agent
+     * @param agName the agent name
+     * @param ag the agent to watch
+     */
+    public AgentWatcher( String agName, Agent ag ) {
+        this.agName = agName;
+        this.ag = ag;
+    }
+
+    /**
+     * Starts recording the changes: wraps the agent belief base and listens to its plan library
+     */
+    public void install() {
+        tracking = new TrackingBB( ag.getBB() );
+        ag.setBB( tracking );
+        ag.getPL().addListener( this );
+    }
+
+    /**
+     * Stops recording the changes: the adapter is removed if it still wraps the belief base, the listener is removed
+     */
+    public void uninstall() {
+        recording = false;
+        ag.getPL().removeListener( this );
+        if ( tracking != null && ag.getBB() == tracking )
+            ag.setBB( tracking.getNextBB() );
+        tracking = null;
+        addedBeliefs.clear();
+        removedBeliefs.clear();
+        addedPlans.clear();
+        removedPlans.clear();
+    }
+
+    @Override
+    public void planAdded( Plan p ) {
+        addedPlans.add( p );
+    }
+
+    @Override
+    public void planRemoved( Plan p ) {
+        removedPlans.add( p );
+    }
+
+    /**
+     * Check if something changed since the last drain
+     * @return true if there are changes to apply
+     */
+    public boolean hasChanges() {
+        return resync.get() || !addedBeliefs.isEmpty() || !removedBeliefs.isEmpty() || !addedPlans.isEmpty() || !removedPlans.isEmpty();
+    }
+
+    /**
+     * Applies to the embedding space all the changes recorded since the last drain
+     * @param space the embedding space to update
+     */
+    public void drainTo( EmbeddingSpace space ) {
+        if ( resync.getAndSet( false ) ) {
+            // The belief base lost whole predicates: rebuild the agent domain from scratch, as at startup
+            addedBeliefs.clear();
+            removedBeliefs.clear();
+            addedPlans.clear();
+            removedPlans.clear();
+            space.resync( agName, ag.getBB().clone(), ag.getPL().clone() );
+            return;
+        }
+
+        List<Literal> beliefs = drain( addedBeliefs );
+        List<Plan> plans = drain( addedPlans );
+        if ( !beliefs.isEmpty() || !plans.isEmpty() )
+            space.addAll( agName, beliefs, plans );
+
+        BeliefBase bb = ag.getBB();
+        for ( Literal bel : drain( removedBeliefs ) )
+            // the belief can still be there, e.g. if only one of its sources was removed
+            if ( bb.contains( bel ) == null )
+                space.removeFromDomain( agName, bel );
+
+        PlanLibrary pl = ag.getPL();
+        for ( Plan plan : drain( removedPlans ) )
+            if ( !hasTrigger( pl, plan.getTrigger() ) )
+                space.removeFromDomain( agName, plan.getTrigger().getLiteral() );
+    }
+
+    /**
+     * Check if a plan library still has a plan with the given trigger
+     * @param pl the plan library
+     * @param te the trigger
+     * @return true if at least one plan has the same trigger
+     */
+    private boolean hasTrigger( PlanLibrary pl, Trigger te ) {
+        List<Plan> candidates = pl.getCandidatePlans( te );
+        if ( candidates == null )
+            return false;
+        for ( Plan p : candidates )
+            if ( p.getTrigger().getLiteral().equalsAsStructure( te.getLiteral() ) )
+                return true;
+        return false;
+    }
+
+    /**
+     * Empties a queue
+     * @param queue the queue to empty
+     * @return the elements removed, in insertion order
+     */
+    private static <T> List<T> drain( Queue<T> queue ) {
+        List<T> elems = new ArrayList<>();
+        T elem;
+        while ( ( elem = queue.poll() ) != null )
+            elems.add( elem );
+        return elems;
+    }
+
+    /**
+     * The belief base adapter that records additions and removals and forwards everything to the real belief base
+     */
+    private class TrackingBB extends ChainBBAdapter {
+
+        TrackingBB( BeliefBase bb ) {
+            super( bb );
+        }
+
+        @Override
+        public boolean add( Literal l ) throws JasonException {
+            boolean added = super.add( l );
+            if ( added && recording )
+                addedBeliefs.add( l.copy() );
+            return added;
+        }
+
+        @Override
+        public boolean add( int index, Literal l ) throws JasonException {
+            boolean added = super.add( index, l );
+            if ( added && recording )
+                addedBeliefs.add( l.copy() );
+            return added;
+        }
+
+        @Override
+        public boolean remove( Literal l ) {
+            boolean removed = super.remove( l );
+            if ( removed && recording )
+                removedBeliefs.add( l.copy() );
+            return removed;
+        }
+
+        @Override
+        public boolean abolish( PredicateIndicator pi ) {
+            boolean abolished = super.abolish( pi );
+            if ( abolished )
+                resync.set( true );
+            return abolished;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            resync.set( true );
+        }
+
+        /**
+         * Get the wrapped belief base
+         * @return the belief base the adapter forwards to
+         */
+        BeliefBase getNextBB() {
+            return nextBB;
+        }
+
+        /** ChainBBAdapter returns itself as clone: the copy must be a real one, since callers modify it */
+        @Override
+        public BeliefBase clone() {
+            return nextBB.clone();
+        }
+    }
+}
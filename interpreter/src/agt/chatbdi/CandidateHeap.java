@@ -0,0 +1,127 @@
+package chatbdi;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap of (row, distance) pairs stored in primitive arrays.
+ * The heap can keep on top either the nearest or the farthest row.
+ * @author Andrea Gatti
+ */
+class CandidateHeap {
+
+    /** The rows in the heap */
+    private int[] rows;
+    /** The distance of each row */
+    private double[] dists;
+    /** The number of elements in the heap */
+    private int size;
+    /** true if the farthest row is on top, false if the nearest is */
+    private final boolean maxHeap;
+
+    /**
+     * Build an empty heap
+     * @param capacity the initial capacity
+     * @param maxHeap true to keep the farthest row on top, false to keep the nearest
+     */
+    CandidateHeap( int capacity, boolean maxHeap ) {
+        this.rows = new int[ Math.max( capacity, 1 ) ];
+        this.dists = new double[ Math.max( capacity, 1 ) ];
+        this.size = 0;
+        this.maxHeap = maxHeap;
+    }
+
+    /**
+     * Add a row to the heap
+     * @param row the row
+     * @param dist the distance of the row
+     */
+    void push( int row, double dist ) {
+        if ( size == rows.length ) {
+            rows = Arrays.copyOf( rows, size * 2 );
+            dists = Arrays.copyOf( dists, size * 2 );
+        }
+        int i = size++;
+        // sift up
+        while ( i > 0 ) {
+            int parent = ( i - 1 ) / 2;
+            if ( !before( dist, dists[ parent ] ) )
+                break;
+            rows[ i ] = rows[ parent ];
+            dists[ i ] = dists[ parent ];
+            i = parent;
+        }
+        rows[ i ] = row;
+        dists[ i ] = dist;
+    }
+
+    /**
+     * Remove the top of the heap
+     * @return the row on top
+     */
+    int pop() {
+        int top = rows[ 0 ];
+        size--;
+        if ( size > 0 ) {
+            int row = rows[ size ];
+            double dist = dists[ size ];
+            int i = 0;
+            // sift down
+            while ( true ) {
+                int child = 2 * i + 1;
+                if ( child >= size )
+                    break;
+                if ( child + 1 < size && before( dists[ child + 1 ], dists[ child ] ) )
+                    child++;
+                if ( !before( dists[ child ], dist ) )
+                    break;
+                rows[ i ] = rows[ child ];
+                dists[ i ] = dists[ child ];
+                i = child;
+            }
+            rows[ i ] = row;
+            dists[ i ] = dist;
+        }
+        return top;
+    }
+
+    /** @return the row on top of the heap */
+    int peekRow() {
+        return rows[ 0 ];
+    }
+
+    /** @return the distance of the row on top of the heap */
+    double peekDist() {
+        return dists[ 0 ];
+    }
+
+    /** @return the number of elements in the heap */
+    int size() {
+        return size;
+    }
+
+    /** @return true if the heap is empty */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Empties the heap returning all the rows sorted from the nearest to the farthest
+     * @return the sorted rows
+     */
+    int[] drainSorted() {
+        int[] sorted = new int[ size ];
+        if ( maxHeap ) {
+            for ( int i = sorted.length - 1; i >= 0; i-- )
+                sorted[ i ] = pop();
+        } else {
+            for ( int i = 0; i < sorted.length; i++ )
+                sorted[ i ] = pop();
+        }
+        return sorted;
+    }
+
+    /** Compares two distances according to the heap order */
+    private boolean before( double d1, double d2 ) {
+        return maxHeap ? d1 > d2 : d1 < d2;
+    }
+}
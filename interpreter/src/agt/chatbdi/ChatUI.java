@@ -8,6 +8,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.IOException;
 
 import javax.swing.JButton;
@@ -22,6 +23,7 @@ import javax.swing.JLabel;
 import javax.swing.SwingWorker;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import java.awt.BorderLayout;
 import java.awt.Component;
@@ -61,6 +63,12 @@ public class ChatUI {
     private String myName;
     // private Interpreter ag;
     private Logger logger;
+    /** The minimum time between two repaints while translations are streamed (ms) */
+    private static final int STREAM_REPAINT_DELAY = 50;
+    /** Repaints the chat once for all the tokens received in STREAM_REPAINT_DELAY */
+    private Timer streamRepaintTimer;
+    /** true if a repaint is already scheduled */
+    private AtomicBoolean streamRepaintPending = new AtomicBoolean( false );
 
     public ChatUI( Logger agLogger, String agName ) {
 
@@ -122,6 +130,13 @@ public class ChatUI {
             }
         });
 
+        // Coalesce the repaints caused by streamed tokens
+        streamRepaintTimer = new Timer( STREAM_REPAINT_DELAY, e -> {
+            streamRepaintPending.set( false );
+            messageList.repaint();
+        });
+        streamRepaintTimer.setRepeats( false );
+
         // show the chat
         chatView.setVisible( true );
     }
@@ -158,8 +173,7 @@ public class ChatUI {
                 } catch( ParseException pe ) {
 
                 } catch ( Exception e ) {
-                    logger.log( Level.SEVERE, "Cannot translate or send the current message. Error: ");
-                    e.printStackTrace();
+                    logger.log( Level.SEVERE, "Cannot translate or send the current message", e );
                 }
                 return -1;
             }
@@ -218,7 +232,7 @@ public class ChatUI {
         private String content;
         private List<String> notes;
         private List<String> mentions;
-        private enum State { typing, translating, finish };
+        private enum State { typing, streaming, translating, finish };
         private enum Status { warning, error, success };
         private State state;
         private Status status;
@@ -235,7 +249,7 @@ public class ChatUI {
             this.mentions = new ArrayList<>();
         }
 
-        protected void addContent( String msg ) {
+        protected synchronized void addContent( String msg ) {
             this.content = msg;
             this.mentions = new ArrayList<>();
             if ( !content.contains( "@" ) )
@@ -255,6 +269,22 @@ public class ChatUI {
 
         }
 
+        /**
+         * Appends a streamed token to the content, up to Ollama.MAX_STREAMED_LENGTH characters
+         * @param token the token to append
+         */
+        protected synchronized void appendContent( String token ) {
+            if ( content == null )
+                content = "";
+            if ( content.length() >= Ollama.MAX_STREAMED_LENGTH )
+                return;
+            String escaped = escapeHtml( token );
+            if ( content.length() + escaped.length() > Ollama.MAX_STREAMED_LENGTH )
+                escaped = escaped.substring( 0, Ollama.MAX_STREAMED_LENGTH - content.length() ) + "...";
+            content += escaped;
+            state = State.streaming;
+        }
+
         private void addKQML( String ilf, String content ) {
             notes.add( "ilf: " + ilf + ", content: " + content );
         }
@@ -281,6 +311,7 @@ public class ChatUI {
         }
 
         boolean isTyping() { return state == State.typing; }
+        boolean isStreaming() { return state == State.streaming; }
         boolean isTranslating() { return state == State.translating; }
         boolean isWarning() { return status == Status.warning; }
         boolean isError() { return status == Status.error; }
@@ -288,7 +319,7 @@ public class ChatUI {
 
         List<String> getReceivers() { return mentions; }
         String getSender() { return sender; }
-        String getContent() { return content; }
+        synchronized String getContent() { return content; }
         UUID getId() { return id; }
         List<String> getNotes() { return notes; }
 
@@ -317,6 +348,14 @@ public class ChatUI {
         messageList.repaint();
     }
 
+    /** Show a small system notice under the current message when it does not match the knowledge of the receivers. */
+    public void showOutOfDomainNotice( UUID id ) {
+        ChatEntry e = findChatEntry( id );
+        String content = "<i>the message does not match what the agents know</i>";
+        e.setWarning( content );
+        messageList.repaint();
+    }
+
     public void setMsg( UUID id, String msg ) {
         ChatEntry e = findChatEntry( id );
         e.addContent( msg );
@@ -324,6 +363,21 @@ public class ChatUI {
         messageList.repaint();
     }
 
+    /**
+     * Appends a piece of a translation that is being generated to a message.
+     * The chat is repainted at most once every STREAM_REPAINT_DELAY milliseconds.
+     * @param id the message
+     * @param token the piece of translation
+     */
+    public void appendMsg( UUID id, String token ) {
+        ChatEntry e = findChatEntry( id );
+        if ( e == null )
+            return;
+        e.appendContent( token );
+        if ( streamRepaintPending.compareAndSet( false, true ) )
+            streamRepaintTimer.start();
+    }
+
     public void setKQML( UUID id, String ilf, String content ) {
         ChatEntry e = findChatEntry( id );
         e.addKQML( ilf, content );
@@ -348,6 +402,10 @@ public class ChatUI {
             String contentHtml = "";
             if ( e.state == ChatEntry.State.typing )
                 contentHtml = "<div style='font-size:small;color:gray'><i>typing...</i></div>";
+            else if ( e.state == ChatEntry.State.streaming ) {
+                contentHtml = "<div>" + e.getContent() + "</div>";
+                contentHtml += "<div style='font-size:small;color:gray'><i>typing...</i></div>";
+            }
             else if ( e.state == ChatEntry.State.translating ) {
                 contentHtml = "<div>" + e.getContent() + "</div>";
                 contentHtml += "<div style='font-size:small;color:gray'><i>translating...</i></div>";
@@ -0,0 +1,296 @@
+package chatbdi;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class implements a persistent embedding cache stored in a binary file.
+ * The cache is keyed by the embedding model and by the preprocessed text of the literal:
+ * the model is written in the header and when it changes the whole file is discarded.
+ * At startup the file is memory mapped and only the offsets of the vectors are loaded in memory: the vectors stored
+ * afterwards are read back from the file too, so the cache never keeps a copy of the vectors on the heap.
+ * The file cannot grow beyond MAX_SIZE, the largest region that can be mapped: a larger file is not opened and the
+ * vectors that would make the file larger are not stored.
+ * A file is used by one cache at a time: the caches are shared by path inside the JVM (see open) and the file is
+ * locked against other processes, so the records are never interleaved and the file is never truncated while mapped.
+ * The file layout is:
+ * <ul>
+ * <li> header: magic (int), version (int), model length (int), model (UTF-8), dimension (int) </li>
+ * <li> records: text length (int), text (UTF-8), vector (dimension floats) </li>
+ * </ul>
+ * @author Andrea Gatti
+ */
+public class EmbeddingCache {
+
+    /** The magic number at the beginning of the file */
+    private static final int MAGIC = 0x43424543;
+    /** The version of the file layout */
+    private static final int VERSION = 1;
+    /** The maximum size of the file */
+    static final long MAX_SIZE = Integer.MAX_VALUE;
+    /** The caches open in this JVM, by canonical path */
+    private static final Map<Path, EmbeddingCache> open = new HashMap<>();
+
+    /** The file of the cache */
+    private final Path path;
+    /** The embedding model the vectors belong to */
+    private final String model;
+    /** The channel used to append new records */
+    private FileChannel channel;
+    /** The content of the file when it was opened */
+    private MappedByteBuffer mapped;
+    /** The size of the vectors, -1 until the first one is stored */
+    private int dim;
+    /** Maps every text to the offset of its vector in the file: the offsets within mapped are read from it */
+    private Map<String, Long> offsets;
+    /** The lock of the file against other processes */
+    private FileLock fileLock;
+    /** The number of users of the cache: the file is closed when the last one closes it */
+    private int refs;
+
+    /**
+     * Opens the cache file, creating it if it does not exist or if it was created for another model
+     * @param path the canonical path of the file
+     * @param model the embedding model in use
+     * @throws IOException if the file cannot be read or written, or if another process uses it
+     */
+    private EmbeddingCache( Path path, String model ) throws IOException {
+        this.path = path;
+        this.model = model;
+        this.offsets = new HashMap<>();
+        this.dim = -1;
+        this.channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        try {
+            this.fileLock = channel.tryLock();
+            if ( fileLock == null )
+                throw new IOException( "The embedding cache " + path + " is used by another process" );
+            load();
+        } catch ( IOException ioe ) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Get the cache of a file, opening it the first time: the users of the same file share the cache.
+     * Every call must be matched by a call to close.
+     * @param path the file of the cache
+     * @param model the embedding model in use
+     * @return the cache
+     * @throws IOException if the file cannot be read or written, if another process uses it or if it is already
+     * open in this JVM for another model
+     */
+    public static synchronized EmbeddingCache open( Path path, String model ) throws IOException {
+        Path absolute = path.toAbsolutePath().normalize();
+        if ( absolute.getParent() != null ) {
+            Files.createDirectories( absolute.getParent() );
+            absolute = absolute.getParent().toRealPath().resolve( absolute.getFileName() );
+        }
+        EmbeddingCache cache = open.get( absolute );
+        if ( cache == null ) {
+            cache = new EmbeddingCache( absolute, model );
+            open.put( absolute, cache );
+        } else if ( !cache.model.equals( model ) ) {
+            throw new IOException( "The embedding cache " + absolute + " is already used for the model " + cache.model );
+        }
+        cache.refs++;
+        return cache;
+    }
+
+    /**
+     * Indexes the records of the file and maps it.
+     * If the header does not match the model the file is emptied; a partial last record is discarded.
+     * The file is mapped only after these changes, so it is never truncated while mapped.
+     * @throws IOException if the file cannot be read or written, or if it is larger than MAX_SIZE
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        if ( size > MAX_SIZE )
+            throw new IOException( "The embedding cache " + path + " is larger than " + MAX_SIZE + " bytes" );
+        int pos = size == 0 ? -1 : readHeader( size );
+        if ( pos == -1 ) {
+            // An empty file, another model or an unknown file: start from scratch
+            channel.truncate( 0 );
+            writeHeader();
+            mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, 0 );
+            return;
+        }
+        long end = pos;
+        if ( dim > 0 ) {
+            // The stream is not closed: it would close the channel
+            channel.position( pos );
+            DataInputStream in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( channel ), 1 << 16 ) );
+            try {
+                while ( end + 4 <= size ) {
+                    int textLen = in.readInt();
+                    if ( textLen < 0 || end + 4 + textLen + 4L * dim > size )
+                        break;
+                    byte[] text = new byte[ textLen ];
+                    in.readFully( text );
+                    in.skipNBytes( 4L * dim );
+                    offsets.put( new String( text, StandardCharsets.UTF_8 ), end + 4 + textLen );
+                    end += 4 + textLen + 4L * dim;
+                }
+            } catch ( EOFException eofe ) {
+                // The file ends inside a record: it is discarded below
+            }
+        }
+        // Discard a record partially written
+        if ( end < size )
+            channel.truncate( end );
+        channel.position( end );
+        mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, end );
+    }
+
+    /**
+     * Reads the header of the file
+     * @param size the size of the file
+     * @return the position of the first record, -1 if the header does not match this cache
+     * @throws IOException if the file cannot be read
+     */
+    private int readHeader( long size ) throws IOException {
+        if ( size < 12 )
+            return -1;
+        ByteBuffer head = ByteBuffer.allocate( 12 );
+        channel.read( head, 0 );
+        if ( head.getInt( 0 ) != MAGIC || head.getInt( 4 ) != VERSION )
+            return -1;
+        int modelLen = head.getInt( 8 );
+        if ( modelLen < 0 || 12L + modelLen + 4 > size )
+            return -1;
+        ByteBuffer rest = ByteBuffer.allocate( modelLen + 4 );
+        channel.read( rest, 12 );
+        byte[] fileModel = new byte[ modelLen ];
+        rest.get( 0, fileModel );
+        if ( !model.equals( new String( fileModel, StandardCharsets.UTF_8 ) ) )
+            return -1;
+        dim = rest.getInt( modelLen );
+        return 12 + modelLen + 4;
+    }
+
+    /**
+     * Writes the header of an empty file; the dimension is 0 until the first vector is stored
+     * @throws IOException if the file cannot be written
+     */
+    private void writeHeader() throws IOException {
+        byte[] modelBytes = model.getBytes( StandardCharsets.UTF_8 );
+        ByteBuffer header = ByteBuffer.allocate( 16 + modelBytes.length );
+        header.putInt( MAGIC ).putInt( VERSION ).putInt( modelBytes.length ).put( modelBytes ).putInt( 0 );
+        header.flip();
+        channel.write( header, 0 );
+        channel.position( header.capacity() );
+    }
+
+    /**
+     * Get the cached embedding of a text
+     * @param text the preprocessed text
+     * @return the embedding vector, null if not cached
+     */
+    public synchronized float[] get( String text ) {
+        Long offset = offsets.get( text );
+        if ( offset == null )
+            return null;
+        float[] vec = new float[ dim ];
+        if ( offset < mapped.capacity() ) {
+            mapped.slice( (int) (long) offset, 4 * dim ).asFloatBuffer().get( vec );
+            return vec;
+        }
+        return read( offset, vec );
+    }
+
+    /**
+     * Reads a vector stored after the file was mapped
+     * @param offset the offset of the vector in the file
+     * @param vec the array to fill
+     * @return vec, null if the file cannot be read
+     */
+    private float[] read( long offset, float[] vec ) {
+        ByteBuffer buf = ByteBuffer.allocate( 4 * vec.length );
+        try {
+            while ( buf.hasRemaining() )
+                if ( channel.read( buf, offset + buf.position() ) < 0 )
+                    return null;
+        } catch ( IOException ioe ) {
+            return null;
+        }
+        buf.flip().asFloatBuffer().get( vec );
+        return vec;
+    }
+
+    /**
+     * Stores the embedding of a text, appending it to the file
+     * @param text the preprocessed text
+     * @param vec the embedding vector
+     * @throws IOException if the file cannot be written or if it would grow beyond MAX_SIZE
+     * @throws IllegalArgumentException if the vector has a different size from the cached ones
+     */
+    public synchronized void put( String text, float[] vec ) throws IOException {
+        if ( vec == null || offsets.containsKey( text ) )
+            return;
+        if ( dim <= 0 ) {
+            // The first vector fixes the dimension written in the header
+            dim = vec.length;
+            int modelLen = model.getBytes( StandardCharsets.UTF_8 ).length;
+            channel.write( ByteBuffer.allocate( 4 ).putInt( 0, dim ), 12 + modelLen );
+        }
+        if ( vec.length != dim )
+            throw new IllegalArgumentException( "Embeddings have different sizes: " + dim + " and " + vec.length );
+
+        byte[] textBytes = text.getBytes( StandardCharsets.UTF_8 );
+        long end = channel.position();
+        if ( end + 4 + textBytes.length + 4L * dim > MAX_SIZE )
+            throw new IOException( "The embedding cache " + path + " is full" );
+        ByteBuffer record = ByteBuffer.allocate( 4 + textBytes.length + 4 * dim );
+        record.putInt( textBytes.length ).put( textBytes );
+        for ( float f : vec )
+            record.putFloat( f );
+        record.flip();
+        while ( record.hasRemaining() )
+            channel.write( record );
+        offsets.put( text, end + 4 + textBytes.length );
+    }
+
+    /**
+     * Get the number of cached embeddings
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Get the file of the cache
+     * @return the path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Releases the cache: the file is unlocked and closed when the last user closes it
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        synchronized ( EmbeddingCache.class ) {
+            if ( --refs > 0 )
+                return;
+            open.remove( path );
+        }
+        synchronized ( this ) {
+            channel.close();
+        }
+    }
+}
@@ -3,15 +3,28 @@ package chatbdi;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.io.IOException;
+import java.nio.file.Path;
 
 import jason.asSyntax.*;
 import static jason.asSyntax.ASSyntax.*;
 
 import jason.bb.BeliefBase;
 import jason.pl.PlanLibrary;
+import jason.runtime.Settings;
 
 import static chatbdi.Tools.*;
 
@@ -19,6 +32,14 @@ import static chatbdi.Tools.*;
  * This class implements the embedding space and all the necessary methods.
  * The embedding space is subdivided into two subspaces: one for the plan heads and one for all the other terms.
  * The embedding space is also organized in domains, one for each agent.
+ * <p>
+ * The space is safe to share between threads: any number of translations can search it at the same time,
+ * while the updates are applied by one thread at a time. The searches take no lock: a search that overlaps the linking
+ * of new rows into the subspaces is discarded and run again under the read lock. An update embeds the new literals
+ * without blocking the searches, so they can wait only while the new rows are linked in.
+ * <p>
+ * Several interpreters can share one space through the EmbeddingSpaceRegistry: each one gets a view, with its own
+ * Ollama client and search settings, over the same subspaces, domains, cache and agent watchers.
  * @author Andrea Gatti
  */
 public class EmbeddingSpace {
@@ -26,105 +47,531 @@ public class EmbeddingSpace {
     /**
      * The plan subspace
      */
-    private Map<Literal, List<Double>> plans;
+    private VectorStore plans;
     /**
      * The term subspace
      */
-    private Map<Literal, List<Double>> terms;
+    private VectorStore terms;
     /**
-     * The agent domain
+     * The nearest neighbour index over the plan subspace
      */
-    private Map<String, List<Literal>> agDomain;
+    private NearestIndex plansIndex;
+    /**
+     * The nearest neighbour index over the term subspace
+     */
+    private NearestIndex termsIndex;
+    /**
+     * Below this size the subspaces are scanned exactly instead of using the index
+     */
+    private int exactBelow = 1000;
+    /**
+     * The maximum number of examples returned by getExamples besides the nearest literal (0 means no limit)
+     */
+    private int maxExamples = 0;
+    /**
+     * The literals farther than this from a message are not considered a match (2.0 accepts everything)
+     */
+    private double maxDistance = 2.0;
+    /**
+     * The number of candidates of a quantized search re-ranked with the exact vectors (0 disables the re-rank)
+     */
+    private int rerank = 0;
+    /**
+     * The agent domains: the rows of the terms subspace known by each agent
+     */
+    private Map<String, BitSet> termsDomains;
+    /**
+     * The agent domains: the rows of the plans subspace known by each agent
+     */
+    private Map<String, BitSet> plansDomains;
     private Map<String, BeliefBase> agBBs;
     private Map<String, PlanLibrary> agPLs;
     /**
      * The ollama instance to use
      */
     private Ollama ollama;
+    /**
+     * The logger of the agent using the space (the one of its Ollama object)
+     */
+    private Logger logger;
+    /**
+     * The persistent embedding cache (null if disabled)
+     */
+    private EmbeddingCache cache;
+    /**
+     * The watchers recording the changes of each agent, shared by all the interpreters using the space
+     */
+    private Map<String, AgentWatcher> watchers;
+    /**
+     * Guards the subspaces, their indexes and the domains: read optimistically by the searches, written by the updater.
+     * The optimistic readings never keep the updater waiting
+     */
+    private StampedLock lock;
+    /**
+     * Serializes the updates, so that the updater can read the space without taking the read lock
+     */
+    private ReentrantLock updater;
+    /**
+     * The versions of the parts of the space, increased by their changes: 'ag:NAME' for the domain of an agent,
+     * 'sig:SUBSPACE:FUNCTOR/ARITY' for the literals with a functor and arity, '*' for any new literal
+     */
+    private Map<String, Long> versions;
 
+    /**
+     * Logs the content of the space and of the agent domains, if the FINE level is enabled
+     */
     public void print() {
+        logger.fine( () -> read( this::describe ) );
+    }
+
+    /**
+     * Describes the content of the space and of the agent domains
+     * @return the description, one literal per line
+     */
+    private String describe() {
         String es = "";
         es += "..:: EMBEDDING SPACE ::..\n";
         es += " --- Plans ---\n";
-        for ( Literal plan : plans.keySet() ) 
+        for ( Literal plan : plans.literals() ) 
             es += " + " + plan + "\n";
         es += " --- Terms ---\n";
-        for ( Literal term : terms.keySet() )
+        for ( Literal term : terms.literals() )
             es += " + " + term + "\n";
         es += "\n --- Agent Domains ---\n";
-        for ( String ag: agDomain.keySet() ) {
+        Set<String> ags = new HashSet<>( termsDomains.keySet() );
+        ags.addAll( plansDomains.keySet() );
+        for ( String ag: ags ) {
             es += " + Agent: " + ag + "\n";
-            for ( Literal lit : agDomain.get(ag) ) 
+            for ( Literal lit : getAgDomain( ag ) ) 
                 es += "     - " + lit + "\n";
         }
-        System.out.println( es );
+        return es;
+    }
+
+    /**
+     * Runs a reading of the space without locking it: if the space changed meanwhile the result is discarded and
+     * the reading is run again under the read lock, so it must have no side effects
+     * @param reading the reading to run
+     * @return the result of the reading
+     */
+    private <T> T read( Supplier<T> reading ) {
+        long stamp = lock.tryOptimisticRead();
+        if ( stamp != 0 ) {
+            try {
+                T result = reading.get();
+                if ( lock.validate( stamp ) )
+                    return result;
+            } catch ( RuntimeException re ) {
+                // The reading saw a change half done: the exceptions of a consistent space are thrown again below
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return reading.get();
+        } finally {
+            lock.unlockRead( stamp );
+        }
+    }
+
+    /**
+     * Runs a change of the space under the write lock; the caller must hold the updater lock.
+     * The lock is not reentrant: the change must not call read
+     * @param change the change to run
+     */
+    private void write( Runnable change ) {
+        long stamp = lock.writeLock();
+        try {
+            change.run();
+        } finally {
+            lock.unlockWrite( stamp );
+        }
     }
 
     /** Build an embedding space with the ollama object to use
      * @param ollama the Ollama object to use for embeddings
+     * @param stts the agent settings, used to configure the nearest neighbour index:
+     * <ul>
+     * <li> ann_index: either 'hnsw' (default) or 'exact' </li>
+     * <li> hnsw_m: the number of links for each literal (default 16) </li>
+     * <li> hnsw_ef_construction: the candidate list size while building (default 200) </li>
+     * <li> hnsw_ef_search: the candidate list size while searching, higher is more accurate but slower (default 64) </li>
+     * <li> ann_exact_below: subspaces smaller than this are scanned exactly (default 1000) </li>
+     * <li> emb_cache: the file of the persistent embedding cache, 'none' to disable it (default .chatbdi/embeddings-MODEL.cache, MODEL being emb_model) </li>
+     * <li> max_examples: the maximum number of examples given to the generation, the nearest to the found literal are kept (default 0, no limit) </li>
+     * <li> max_distance: the cosine distance above which a literal does not match a message (default 2.0, every literal matches) </li>
+     * <li> emb_quantization: 'int8' stores the vectors as bytes with a scale factor, using a quarter of the memory (default 'none') </li>
+     * <li> emb_rerank: with int8, the number of candidates re-ranked with the exact vectors of the embedding cache (default 0, no re-rank) </li>
+     * </ul>
+     * @throws IllegalArgumentException if emb_quantization is not 'none' or 'int8'
      */
-    public EmbeddingSpace( Ollama ollama ) {
-        this.plans = new HashMap<>();
-        this.terms = new HashMap<>();
-        this.agDomain = new HashMap<>();
+    public EmbeddingSpace( Ollama ollama, Settings stts ) {
+        String quantization = stts.getUserParameter( "emb_quantization" );
+        if ( quantization != null && !quantization.equals( "none" ) && !quantization.equals( "int8" ) )
+            throw new IllegalArgumentException( "emb_quantization can be either 'none' or 'int8'." );
+        boolean quantized = quantization != null && quantization.equals( "int8" );
+        this.plans = new VectorStore( quantized );
+        this.terms = new VectorStore( quantized );
+        this.plansIndex = createIndex( plans, stts );
+        this.termsIndex = createIndex( terms, stts );
+        this.termsDomains = new HashMap<>();
+        this.plansDomains = new HashMap<>();
         this.ollama = ollama;
+        this.logger = getLogger( ollama );
         this.agBBs = new HashMap<>();
         this.agPLs = new HashMap<>();
+        this.watchers = new HashMap<>();
+        this.lock = new StampedLock();
+        this.updater = new ReentrantLock();
+        this.versions = new ConcurrentHashMap<>();
+        configureSearch( stts );
+        String cachePath = stts.getUserParameter( "emb_cache" );
+        if ( cachePath == null )
+            cachePath = defaultCachePath( ollama.EMB_MODEL );
+        if ( !cachePath.equals( "none" ) ) {
+            try {
+                this.cache = EmbeddingCache.open( Path.of( cachePath ), ollama.EMB_MODEL );
+            } catch ( IOException ioe ) {
+                // The space works also without cache
+                logger.log( Level.WARNING, "The embedding cache " + cachePath + " cannot be opened, the space works without it", ioe );
+            }
+        }
+    }
+
+    /**
+     * Get the default file of the embedding cache of a model: each model has its own file, so that switching model does
+     * not reset the cache of the other one (the size of the embeddings is fixed by the model)
+     * @param model the embedding model
+     * @return the path of the cache file, in the .chatbdi folder
+     */
+    private static String defaultCachePath( String model ) {
+        return ".chatbdi/embeddings-" + model.replaceAll( "[^A-Za-z0-9._-]", "_" ) + ".cache";
+    }
+
+    /**
+     * Build a view of a shared embedding space: the content, the cache and the locks are the ones of the shared space,
+     * the Ollama client and the search settings (ann_exact_below, max_examples, max_distance, emb_rerank) are its own
+     * @param shared the space to share
+     * @param ollama the Ollama object of the interpreter using the view
+     * @param stts the settings of the interpreter using the view
+     */
+    protected EmbeddingSpace( EmbeddingSpace shared, Ollama ollama, Settings stts ) {
+        this.plans = shared.plans;
+        this.terms = shared.terms;
+        this.plansIndex = shared.plansIndex;
+        this.termsIndex = shared.termsIndex;
+        this.termsDomains = shared.termsDomains;
+        this.plansDomains = shared.plansDomains;
+        this.agBBs = shared.agBBs;
+        this.agPLs = shared.agPLs;
+        this.watchers = shared.watchers;
+        this.cache = shared.cache;
+        this.lock = shared.lock;
+        this.updater = shared.updater;
+        this.versions = shared.versions;
+        this.ollama = ollama;
+        this.logger = getLogger( ollama );
+        configureSearch( stts );
+    }
+
+    /**
+     * Get the logger to use with an Ollama object
+     * @param ollama the Ollama object (can be null)
+     * @return the logger of its agent, or the logger of the class
+     */
+    private static Logger getLogger( Ollama ollama ) {
+        return ollama != null ? ollama.getLogger() : Logger.getLogger( EmbeddingSpace.class.getName() );
+    }
+
+    /**
+     * Reads the search settings of an interpreter
+     * @param stts the agent settings
+     */
+    private void configureSearch( Settings stts ) {
+        String sttsExactBelow = stts.getUserParameter( "ann_exact_below" );
+        if ( sttsExactBelow != null )
+            exactBelow = Integer.parseInt( sttsExactBelow );
+        String sttsMaxExamples = stts.getUserParameter( "max_examples" );
+        if ( sttsMaxExamples != null )
+            maxExamples = Integer.parseInt( sttsMaxExamples );
+        String sttsMaxDistance = stts.getUserParameter( "max_distance" );
+        if ( sttsMaxDistance != null )
+            maxDistance = Double.parseDouble( sttsMaxDistance );
+        String sttsRerank = stts.getUserParameter( "emb_rerank" );
+        if ( sttsRerank != null )
+            rerank = Integer.parseInt( sttsRerank );
+    }
+
+    /**
+     * Get the watchers recording the changes of the agents in the space
+     * @return the map from agent names to their watcher, shared by all the views
+     */
+    protected Map<String, AgentWatcher> getWatchers() {
+        return watchers;
+    }
+
+    /**
+     * Releases the resources of the space: the agent watchers are uninstalled and the cache is closed.
+     * The views of the space must not be used afterwards
+     */
+    protected void close() {
+        synchronized ( watchers ) {
+            for ( AgentWatcher watcher : watchers.values() )
+                watcher.uninstall();
+            watchers.clear();
+        }
+        if ( cache == null )
+            return;
+        try {
+            cache.close();
+        } catch ( IOException ioe ) {
+            logger.log( Level.WARNING, "The embedding cache cannot be closed", ioe );
+        }
+    }
+
+    /**
+     * Creates the nearest neighbour index for a subspace as configured in the settings
+     * @param store the subspace to index
+     * @param stts the agent settings
+     * @return the index
+     * @throws IllegalArgumentException if ann_index is not 'hnsw' or 'exact'
+     */
+    private NearestIndex createIndex( VectorStore store, Settings stts ) {
+        String type = stts.getUserParameter( "ann_index" );
+        if ( type == null || type.equals( "hnsw" ) ) {
+            int m = 16;
+            int efConstruction = 200;
+            int efSearch = 64;
+            String sttsM = stts.getUserParameter( "hnsw_m" );
+            if ( sttsM != null )
+                m = Integer.parseInt( sttsM );
+            String sttsEfConstruction = stts.getUserParameter( "hnsw_ef_construction" );
+            if ( sttsEfConstruction != null )
+                efConstruction = Integer.parseInt( sttsEfConstruction );
+            String sttsEfSearch = stts.getUserParameter( "hnsw_ef_search" );
+            if ( sttsEfSearch != null )
+                efSearch = Integer.parseInt( sttsEfSearch );
+            return new HnswIndex( store, m, efConstruction, efSearch, 42 );
+        }
+        if ( type.equals( "exact" ) )
+            return new ExactIndex( store );
+        throw new IllegalArgumentException( "ann_index can be either 'hnsw' or 'exact'." );
     }
 
     protected void update( String agName, BeliefBase bb, PlanLibrary pl ) {
-        if ( !agBBs.containsKey( agName ) ) {
-            agBBs.put( agName, bb );
-        } else {
-            for ( Literal belief : this.agBBs.get( agName ) ) {
-                bb.remove( belief );
+        updater.lock();
+        try {
+            if ( !agBBs.containsKey( agName ) ) {
+                agBBs.put( agName, bb );
+            } else {
+                for ( Literal belief : this.agBBs.get( agName ) ) {
+                    bb.remove( belief );
+                }
+            }
+            if ( !agPLs.containsKey( agName ) ) {
+                agPLs.put( agName, pl );
+            } else {
+                for ( Plan plan : this.agPLs.get( agName ) ) {
+                    pl.remove( plan.getLabel() );
+                }
             }
+            addAll( agName, bb, pl );
+        } finally {
+            updater.unlock();
         }
-        if ( !agPLs.containsKey( agName ) ) {
+    }
+
+    /**
+     * Adds to the space and to the agent domain the given beliefs and plans.
+     * Rules add their head and the predicates in their body, plans add their trigger and the predicates in their context.
+     * @param agName the agent name for the domain
+     * @param beliefs the beliefs to add
+     * @param pl the plans to add
+     */
+    protected void addAll( String agName, Iterable<Literal> beliefs, Iterable<Plan> pl ) {
+        addAll( agName, beliefs, pl, false );
+    }
+
+    /**
+     * Replaces the domain of an agent with the literals of its current beliefs and plans, as a full scan would build it.
+     * Used when the changes of the agent were lost: the literals removed meanwhile leave the domain.
+     * The searches see either the old domain or the new one, never a partial one.
+     * @param agName the agent name for the domain
+     * @param bb a snapshot of the agent belief base
+     * @param pl a snapshot of the agent plan library
+     */
+    protected void resync( String agName, BeliefBase bb, PlanLibrary pl ) {
+        updater.lock();
+        try {
+            agBBs.put( agName, bb );
             agPLs.put( agName, pl );
-        } else {
-            for ( Plan plan : this.agPLs.get( agName ) ) {
-                pl.remove( plan.getLabel() );
+            addAll( agName, bb, pl, true );
+        } finally {
+            updater.unlock();
+        }
+    }
+
+    /**
+     * Adds to the space and to the agent domain the given beliefs and plans
+     * @param agName the agent name for the domain
+     * @param beliefs the beliefs to add
+     * @param pl the plans to add
+     * @param replace true to replace the agent domain with the given literals, false to add them to it
+     */
+    private void addAll( String agName, Iterable<Literal> beliefs, Iterable<Plan> pl, boolean replace ) {
+        updater.lock();
+        try {
+            // First collect all the literals to add, then embed the missing ones in batches
+            List<Literal> newTerms = new ArrayList<>();
+            List<Literal> newPlans = new ArrayList<>();
+            for ( Literal bel : beliefs ) {
+                if ( bel.toString().contains( "kqml::" ) )
+                    continue;
+                if ( !replace && containsTerm( bel ) )
+                    continue;
+                if ( bel.isRule() ) { 
+                    Literal head = ( (Rule) bel ).getHead();
+                    newTerms.add( head );
+                    LogicalFormula body = ( (Rule) bel ).getBody();
+                    List<Pred> preds = formulaToList( body );
+                    for ( Pred p : preds )
+                        newTerms.add( p );
+                    continue; // necessary to do not add the belief this line + 2
+                }
+                newTerms.add( bel );
+            }
+            for ( Plan plan : pl ) {
+                if ( plan.toString().contains( "@kqml" ) )
+                    continue;
+                Literal triggerLit = plan.getTrigger().getLiteral();
+                LogicalFormula context = plan.getContext();
+                if ( context != null ) {
+                    List<Pred> contextList = formulaToList( context );
+                    logger.finest( () -> "Plan " + triggerLit + " context " + context + ": " + contextList );
+                    newTerms.addAll( contextList );
+                }
+                if ( !replace && plan.getTrigger().isAchvGoal() && containsPlan( triggerLit ) )
+                    continue;
+                if ( !replace && !plan.getTrigger().isAchvGoal() && containsTerm( triggerLit ) )
+                    continue;
+                if ( plan.getTrigger().isAchvGoal() )
+                    newPlans.add( triggerLit );
+                else
+                    newTerms.add( triggerLit );
             }
+
+            // The searches go on while embedding, they wait only while the literals are linked in
+            Map<Literal, float[]> termEmbs = embedMissing( newTerms, terms );
+            Map<Literal, float[]> planEmbs = embedMissing( newPlans, plans );
+            write( () -> {
+                if ( replace )
+                    clearDomain( agName );
+                for ( Literal t : newTerms )
+                    putLiteral( agName, terms, termsIndex, t, termEmbs.get( t ) );
+                for ( Literal p : newPlans )
+                    putLiteral( agName, plans, plansIndex, p, planEmbs.get( p ) );
+            } );
+        } finally {
+            updater.unlock();
         }
+    }
 
-        for ( Literal bel : bb ) {
-            if ( bel.toString().contains( "kqml::" ) )
-                continue;
-            if ( containsTerm( bel ) )
-                continue;
-            if ( bel.isRule() ) { 
-                Literal head = ( (Rule) bel ).getHead();
-                addTerm( agName, head );
-                LogicalFormula body = ( (Rule) bel ).getBody();
-                List<Pred> preds = formulaToList( body );
-                for ( Pred p : preds )
-                    addTerm( agName, p );
-                continue; // necessary to do not call the addTerm this line + 2
+    /**
+     * Embeds with as few requests as possible all the literals that are not yet in a subspace
+     * @param lits the literals to consider (they can contain duplicates)
+     * @param store the subspace
+     * @return the embedding of every missing literal; the literals of a failed batch or with a zero vector are left out
+     */
+    private Map<Literal, float[]> embedMissing( List<Literal> lits, VectorStore store ) {
+        List<Literal> missing = new ArrayList<>();
+        Set<Literal> seen = new HashSet<>();
+        for ( Literal l : lits )
+            if ( !store.contains( l ) && seen.add( l ) )
+                missing.add( l );
+
+        // Look for the embeddings in the persistent cache first
+        Map<Literal, float[]> embs = new HashMap<>();
+        List<Literal> toEmbed = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        for ( Literal l : missing ) {
+            String text = preprocess( l );
+            float[] cached = cache == null ? null : cache.get( text );
+            if ( cached != null ) {
+                embs.put( l, cached );
+            } else {
+                toEmbed.add( l );
+                inputs.add( text );
             }
-            addTerm( agName, bel );
         }
-        for ( Plan plan : pl ) {
-            if ( plan.toString().contains( "@kqml" ) )
+
+        if ( toEmbed.isEmpty() )
+            return embs;
+        List<float[]> vecs = ollama.embedAll( inputs );
+        for ( int i = 0; i < toEmbed.size(); i++ ) {
+            float[] vec = vecs.get( i );
+            // Failed batches and zero vectors are not cached: putLiteral reports the literals left out
+            if ( vec == null || norm( vec ) == 0 )
                 continue;
-            Literal triggerLit = plan.getTrigger().getLiteral();
-            LogicalFormula context = plan.getContext();
-            if ( context != null ) {
-                System.out.println( "[DEBUG] Plan " + triggerLit + " Context " + context );
-                List<Pred> contextList = formulaToList( context );
-                for ( Pred pred : contextList ) {
-                    System.out.println( "[DEBUG] Plan " + triggerLit + " Context: " + pred );
-                    addTerm( agName, pred );
+            embs.put( toEmbed.get( i ), vec );
+            storeInCache( inputs.get( i ), vec );
+        }
+        return embs;
+    }
+
+    /**
+     * Computes the embedding of a literal, looking for it in the persistent cache first
+     * @param l the literal to embed
+     * @return the embedding vector
+     */
+    private float[] embed( Literal l ) {
+        String text = preprocess( l );
+        float[] embedding = cache == null ? null : cache.get( text );
+        if ( embedding != null )
+            return embedding;
+        embedding = ollama.embed( text );
+        storeInCache( text, embedding );
+        return embedding;
+    }
+
+    /**
+     * Stores an embedding in the persistent cache, if enabled
+     * @param text the preprocessed text
+     * @param embedding the embedding vector
+     */
+    private void storeInCache( String text, float[] embedding ) {
+        if ( cache == null || embedding == null )
+            return;
+        try {
+            cache.put( text, embedding );
+        } catch ( IOException ioe ) {
+            logger.log( Level.WARNING, "The embedding of '" + text + "' cannot be stored in the cache", ioe );
+        }
+    }
+
+    /**
+     * Removes a literal from the agent domain (its embedding stays in the space).
+     * All the literals in the domain with the same structure, whatever their annotations, are removed.
+     * @param agName the agent name for the domain
+     * @param l the literal to remove
+     */
+    protected void removeFromDomain( String agName, Literal l ) {
+        updater.lock();
+        try {
+            write( () -> {
+                for ( VectorStore store : List.of( terms, plans ) ) {
+                    BitSet domain = getDomains( store ).get( agName );
+                    if ( domain == null )
+                        continue;
+                    // Only the literals with the same functor and arity can have the same structure
+                    for ( int row : store.rowsOf( l.getFunctor(), l.getArity() ) ) {
+                        if ( domain.get( row ) && store.literalAt( row ).equalsAsStructure( l ) ) {
+                            domain.clear( row );
+                            versions.merge( "ag:" + agName, 1L, Long::sum );
+                        }
+                    }
                 }
-            }
-            if ( plan.getTrigger().isAchvGoal() && containsPlan( triggerLit ) )
-                continue;
-            if ( !plan.getTrigger().isAchvGoal() && containsTerm( triggerLit ) )
-                continue;
-            if ( plan.getTrigger().isAchvGoal() )
-                addPlan( agName, triggerLit );
-            else
-                addTerm( agName, triggerLit );
+            } );
+        } finally {
+            updater.unlock();
         }
     }
 
@@ -134,7 +581,7 @@ public class EmbeddingSpace {
      * @return true if contained, false otherwise
      */
     protected boolean containsTerm( Literal t ) {
-        return terms.keySet().contains( t );
+        return read( () -> terms.contains( t ) );
     }
 
     /**
@@ -143,7 +590,7 @@ public class EmbeddingSpace {
      * @return true if contained, false otherwise
      */
     protected boolean containsPlan( Literal p ) {
-        return plans.keySet().contains( p );
+        return read( () -> plans.contains( p ) );
     }
 
     /**
@@ -177,8 +624,90 @@ public class EmbeddingSpace {
      * @return true if contined, false otherwise
      */
     protected boolean isInAgDomain( String agName, Literal l ) {
-        List<Literal> domain = this.agDomain.get( agName );
-        return domain != null && domain.contains( l );
+        return read( () -> isInAgDomain( agName, terms, l ) || isInAgDomain( agName, plans, l ) );
+    }
+
+    /**
+     * Checks if the Literal of a subspace is contained in the agent domain
+     * @param agName the agent to consider
+     * @param store the subspace of the literal
+     * @param l the literal to check
+     * @return true if contained, false otherwise
+     */
+    private boolean isInAgDomain( String agName, VectorStore store, Literal l ) {
+        BitSet domain = getDomains( store ).get( agName );
+        int row = store.rowOf( l );
+        return domain != null && row != -1 && domain.get( row );
+    }
+
+    /**
+     * Adds a row of a subspace to the agent domain
+     * @param agName the agent name
+     * @param store the subspace of the row
+     * @param row the row to add
+     */
+    private void addToDomain( String agName, VectorStore store, int row ) {
+        BitSet domain = getDomains( store ).computeIfAbsent( agName, ag -> new BitSet() );
+        if ( domain.get( row ) )
+            return;
+        domain.set( row );
+        versions.merge( "ag:" + agName, 1L, Long::sum );
+    }
+
+    /**
+     * Empties the domain of an agent; the caller must hold the write lock
+     * @param agName the agent name
+     */
+    private void clearDomain( String agName ) {
+        for ( VectorStore store : List.of( terms, plans ) ) {
+            BitSet domain = getDomains( store ).get( agName );
+            if ( domain != null && !domain.isEmpty() ) {
+                domain.clear();
+                versions.merge( "ag:" + agName, 1L, Long::sum );
+            }
+        }
+    }
+
+    /**
+     * Get the version of the part of the space searched for a message: it changes whenever the result of the search may change.
+     * With receivers it is the version of their domains, otherwise the version of the whole space.
+     * @param ags the list of agent names (empty for all)
+     * @return the version
+     */
+    protected long getVersion( List<String> ags ) {
+        if ( ags.isEmpty() )
+            return versions.getOrDefault( "*", 0L );
+        // The versions only increase: their sum changes with any of them
+        long version = 0;
+        for ( String ag : ags )
+            version += versions.getOrDefault( "ag:" + ag, 0L );
+        return version;
+    }
+
+    /**
+     * Get the version of the examples of a literal: it changes whenever getExamples may give other examples
+     * @param ilf the illocutionary force of the message
+     * @param nearest the found nearest literal in the space
+     * @return the version
+     */
+    protected long getExamplesVersion( Literal ilf, Literal nearest ) {
+        return versions.getOrDefault( signature( getStore( examplesSubSpace( ilf ) ), nearest ), 0L );
+    }
+
+    /**
+     * Get the version key of the literals of a subspace with the functor and arity of a literal
+     */
+    private String signature( VectorStore store, Literal l ) {
+        return "sig:" + ( store == terms ? "terms:" : "plans:" ) + l.getFunctor() + "/" + l.getArity();
+    }
+
+    /**
+     * Get the agent domains of a subspace
+     * @param store the subspace
+     * @return the map from agent names to the rows in their domain
+     */
+    private Map<String, BitSet> getDomains( VectorStore store ) {
+        return store == terms ? termsDomains : plansDomains;
     }
 
     /**
@@ -187,25 +716,17 @@ public class EmbeddingSpace {
      * @param p the plan head to add
      */
     protected void addPlan( String agName, Literal p ) {
-        // if the embedding is already computed
-        if ( containsPlan( p ) ) {
-            // if the plan is already in the agent domain exit
-            if ( isInAgDomain( agName, p ) )
-                return;
-            // otherwise add it to the agent domain and exit
-            if ( !agDomain.containsKey( agName ) )
-                agDomain.put( agName, new ArrayList<>() );
-            agDomain.get( agName).add( p );
-            return;
-        }
-        // create the embedding vector
-        List<Double> embedding = ollama.embed( p );
-        // Add it to the plan subspace
-        plans.put( p, embedding );
-        // Add it to the agent domain
-        if ( !agDomain.containsKey( agName ) )
-            agDomain.put( agName, new ArrayList<>() );
-        agDomain.get( agName ).add( p );
+        addPlan( agName, p, null );
+    }
+
+    /**
+     * Add a plan to the Embedding Space using an embedding already computed
+     * @param agName the agent name for the domain
+     * @param p the plan head to add
+     * @param embedding the embedding of p, if null and needed it is computed
+     */
+    protected void addPlan( String agName, Literal p, float[] embedding ) {
+        add( agName, plans, plansIndex, p, embedding );
     }
 
     /**
@@ -214,87 +735,124 @@ public class EmbeddingSpace {
      * @param t the Literal to add
      */
     protected void addTerm( String agName, Literal t ) {
-        // if the embedding is already computed
-        if ( containsTerm( t ) ) {
-            // if the term is already in the agent domain exit
-            if ( isInAgDomain( agName, t ) )
-                return;
-            // otherwise add it to the agent domain and exit
-            if ( !agDomain.containsKey( agName ) )
-                agDomain.put( agName, new ArrayList<>() );
-            agDomain.get( agName).add( t );
-            return;
-        }
+        addTerm( agName, t, null );
+    }
 
-        // create the embedding vector
-        List<Double> embedding = ollama.embed( t );
-        // Add it to the terms subspace
-        terms.put( t, embedding );
-        // Add it to the agent domain
-        if ( !agDomain.containsKey( agName ) )
-            agDomain.put( agName, new ArrayList<>() );
-        agDomain.get( agName ).add( t );
+    /**
+     * Add a term to the Embedding Space using an embedding already computed
+     * @param agName the agent name for the domain
+     * @param t the Literal to add
+     * @param embedding the embedding of t, if null and needed it is computed
+     */
+    protected void addTerm( String agName, Literal t, float[] embedding ) {
+        add( agName, terms, termsIndex, t, embedding );
     }
 
     /**
-     * Get the list of all the plans
-     * @return a list of Literals
+     * Add a literal to a subspace, embedding it outside the write lock if needed
+     * @param agName the agent name for the domain
+     * @param store the subspace
+     * @param index the index of the subspace
+     * @param l the literal to add
+     * @param embedding the embedding of l, if null and needed it is computed
      */
-    protected List<Literal> getPlans() {
-        return new ArrayList<>( plans.keySet() );
+    private void add( String agName, VectorStore store, NearestIndex index, Literal l, float[] embedding ) {
+        updater.lock();
+        try {
+            // create the embedding vector if the literal is not already in the subspace
+            float[] emb = embedding == null && !store.contains( l ) ? embed( l ) : embedding;
+            write( () -> putLiteral( agName, store, index, l, emb ) );
+        } finally {
+            updater.unlock();
+        }
     }
 
     /**
-     * Get the list of all the terms
-     * @return a list of Literals
+     * Puts a literal in a subspace and in the agent domain; the caller must hold the write lock
+     * @param agName the agent name for the domain
+     * @param store the subspace
+     * @param index the index of the subspace
+     * @param l the literal to add
+     * @param embedding the embedding of l, needed only if it is not already in the subspace
      */
-    protected List<Literal> getTerms() {
-        return new ArrayList<>( terms.keySet() );
+    private void putLiteral( String agName, VectorStore store, NearestIndex index, Literal l, float[] embedding ) {
+        int row = store.rowOf( l );
+        if ( row == -1 ) {
+            // A literal without a valid embedding is skipped: the others of the batch are added anyway
+            if ( embedding == null || norm( embedding ) == 0 ) {
+                logger.warning( () -> "No valid embedding for " + l + ": it is not added to the space" );
+                return;
+            }
+            // Add it to the subspace and to its index
+            try {
+                row = store.add( l, embedding );
+            } catch ( IllegalArgumentException iae ) {
+                logger.warning( () -> "The embedding of " + l + " cannot be stored: " + iae.getMessage() );
+                return;
+            }
+            index.add( row );
+            versions.merge( "*", 1L, Long::sum );
+            versions.merge( signature( store, l ), 1L, Long::sum );
+        }
+        // Add it to the agent domain (nothing changes if it is already there)
+        addToDomain( agName, store, row );
     }
 
     /**
-     * Get the embedding vector of a specific plan
-     * @param plan the plan head
-     * @return the vector as a list of Double
+     * Get the list of all the plans
+     * @return a list of Literals
      */
-    private List<Double> getPlanEmbedding( Literal plan ) {
-        return plans.get( plan );
+    protected List<Literal> getPlans() {
+        return read( plans::literals );
     }
 
     /**
-     * Get the embedding vector of a specific term
-     * @param term the term head
-     * @return the vector as a list of Double
+     * Get the list of all the terms
+     * @return a list of Literals
      */
-    private List<Double> getTermEmbedding( Literal term ) {
-        return terms.get( term );
+    protected List<Literal> getTerms() {
+        return read( terms::literals );
     }
 
     /**
      * Get the embedding vector of a literal
      * @param l the literal to get
-     * @return the embedding vector as List of Double
+     * @return a copy of the embedding vector, null if the literal is not in the space
      */
-    private List<Double> getEmbedding( Literal l ) {
-        if ( terms.keySet().contains( l ) )
-            return getTermEmbedding( l );
-        else if ( plans.keySet().contains( l ) )
-            return getPlanEmbedding( l );
+    private float[] getEmbedding( Literal l ) {
+        if ( terms.contains( l ) )
+            return terms.get( l );
+        else if ( plans.contains( l ) )
+            return plans.get( l );
         return null;
     }
 
     /**
-     * Get the embedding vector of a literal inside a subspace (useful for scripting)
+     * Get the vector store of a subspace
      * @param subSpace the subspace to consider, either 'terms' or 'plans'
-     * @param l the Literal to get
-     * @return the embedding vector as a List of Double
+     * @return the vector store
+     * @throws IllegalArgumentException if the subspace is not 'terms' or 'plans'
      */
-    private List<Double> getEmbedding( String subSpace, Literal l ) {
+    private VectorStore getStore( String subSpace ) {
         if ( subSpace.equals( "terms" ) )
-            return getTermEmbedding( l );
+            return terms;
         if ( subSpace.equals( "plans" ) )
-            return getPlanEmbedding( l );
-        return null;
+            return plans;
+        throw new IllegalArgumentException( "Subspace can be either 'terms' or 'plans'.");
+    }
+
+    /**
+     * Get the nearest neighbour index of a subspace
+     * @param subSpace the subspace to consider, either 'terms' or 'plans'
+     * @return the index
+     * @throws IllegalArgumentException if the subspace is not 'terms' or 'plans'
+     */
+    private NearestIndex getIndex( String subSpace ) {
+        if ( subSpace.equals( "terms" ) )
+            return termsIndex;
+        if ( subSpace.equals( "plans" ) )
+            return plansIndex;
+        throw new IllegalArgumentException( "Subspace can be either 'terms' or 'plans'.");
     }
 
     /**
@@ -304,11 +862,7 @@ public class EmbeddingSpace {
      * @throws IllegalArgumentException if the subspace is not 'terms' or 'plans'
      */
     private List<Literal> getSubSpace( String subSpace ) {
-        if ( subSpace.equals( "terms" ) )
-            return getTerms();
-        if ( subSpace.equals( "plans" ) )
-            return getPlans();
-        throw new IllegalArgumentException( "Subspace can be either 'terms' or 'plans'.");
+        return getStore( subSpace ).literals();
     }
 
     /**
@@ -319,31 +873,53 @@ public class EmbeddingSpace {
      * @throws IllegalArgumentException if subspace is not 'terms' or 'plans'
      */
     private List<Literal> getAgsSubSpace( List<String> agNames, String subSpace ) {
-        // The intersection is a set to prevent having duplicates
-        Set<Literal> space = new HashSet<Literal>( getSubSpace( subSpace ) );
+        return read( () -> {
+            // If there are no receivers return the full subspace
+            if ( agNames.isEmpty() )
+                return getSubSpace( subSpace );
 
-        // If there are no receivers return the full subspace
-        if ( agNames.isEmpty() )
-            return new ArrayList<Literal>( space );
-
-        // Get all the literals inside the agents domains
-        Set<Literal> agsDomain = new HashSet<>();
-        for ( String ag : agNames )
-            agsDomain.addAll( getAgDomain( ag ) );
+            VectorStore store = getStore( subSpace );
+            BitSet rows = getAgsDomain( agNames, store );
+            List<Literal> space = new ArrayList<>( rows.cardinality() );
+            for ( int row = rows.nextSetBit( 0 ); row >= 0; row = rows.nextSetBit( row + 1 ) )
+                space.add( store.literalAt( row ) );
+            return space;
+        } );
+    }
 
-        // Intersect the two sets
-        space.retainAll( agsDomain );
-        return new ArrayList<Literal>( space );
+    /**
+     * Get the union of the agents domains in a subspace
+     * @param agNames the list of agents domains to consider
+     * @param store the subspace to consider
+     * @return the rows in at least one of the domains
+     */
+    private BitSet getAgsDomain( List<String> agNames, VectorStore store ) {
+        Map<String, BitSet> domains = getDomains( store );
+        BitSet agsDomain = new BitSet( store.size() );
+        for ( String ag : agNames ) {
+            BitSet domain = domains.get( ag );
+            if ( domain != null )
+                agsDomain.or( domain );
+        }
+        return agsDomain;
     }
 
 
     /**
      * Get the agent domain
      * @param ag the agent name
-     * @return a list of literal
+     * @return a list of literal, the terms first and then the plans
      */
     private List<Literal> getAgDomain( String ag ) {
-        return agDomain.get( ag );
+        List<Literal> domain = new ArrayList<>();
+        for ( VectorStore store : List.of( terms, plans ) ) {
+            BitSet rows = getDomains( store ).get( ag );
+            if ( rows == null )
+                continue;
+            for ( int row = rows.nextSetBit( 0 ); row >= 0; row = rows.nextSetBit( row + 1 ) )
+                domain.add( store.literalAt( row ) );
+        }
+        return domain;
     }
 
     /**
@@ -355,44 +931,148 @@ public class EmbeddingSpace {
      */
     protected Literal findNearest( List<String> ags, String subSpace, String msg ) {
         // Embed the message
-        List<Double> emb = ollama.embed( msg );
-
-        Literal nearestLiteral = null;
-        double nearestDist = Double.MAX_VALUE;
-        // Consider all the literals inside the intersection of agents' domains and subspace
-        for ( Literal lit : getAgsSubSpace( ags, subSpace ) ) {
-            List<Double> litEmb = getEmbedding( subSpace, lit );
-            // Compute the distance and consider it
-            double dist = cosineDistance( emb, litEmb );
-            if ( dist < nearestDist ) {
-                nearestDist = dist;
-                nearestLiteral = lit;
+        return findNearest( ags, subSpace, ollama.embed( msg ) );
+    }
+
+    /**
+     * Given a list of agent names, a subspace and the embedding of a message, finds the nearest literal inside the space
+     * @param ags the list of agent names
+     * @param subSpace the subspace to consider, either 'terms' or 'plans'
+     * @param emb the embedding of the message
+     * @return the nearest literal found, null if there is none within max_distance
+     */
+    protected Literal findNearest( List<String> ags, String subSpace, float[] emb ) {
+        List<Neighbour> nearest = findNearest( ags, subSpace, emb, 1 );
+        return nearest.isEmpty() ? null : nearest.get( 0 ).getLiteral();
+    }
+
+    /**
+     * Given a list of agent names, a subspace and the embedding of a message, finds the k nearest literals inside the space.
+     * The literals farther than max_distance from the message are discarded.
+     * If the subspace is quantized and emb_rerank is set, emb_rerank candidates are found and sorted again
+     * with their exact vectors, read from the embedding cache.
+     * @param ags the list of agent names
+     * @param subSpace the subspace to consider, either 'terms' or 'plans'
+     * @param emb the embedding of the message
+     * @param k the maximum number of literals to find
+     * @return the literals found with their distance, the nearest first
+     */
+    protected List<Neighbour> findNearest( List<String> ags, String subSpace, float[] emb, int k ) {
+        double embNorm = norm( emb );
+        if ( embNorm == 0 )
+            throw new IllegalArgumentException( "Embedding norm cannot be ZERO" );
+
+        NearestIndex index = getIndex( subSpace );
+        VectorStore store = index.getStore();
+        boolean reranking = store.isQuantized() && cache != null && rerank > k;
+        List<Neighbour> candidates = read( () -> {
+            // If there are receivers only the literals in their domains are considered
+            IntPredicate filter = null;
+            if ( !ags.isEmpty() )
+                filter = getAgsDomain( ags, store )::get;
+            List<Neighbour> found = new ArrayList<>();
+            for ( int row : searchNearest( index, emb, embNorm, reranking ? rerank : k, filter ) )
+                found.add( new Neighbour( store.literalAt( row ), store.distance( row, emb, embNorm ) ) );
+            return found;
+        } );
+        if ( reranking ) {
+            // The exact vectors are read from the cache outside the lock
+            for ( int i = 0; i < candidates.size(); i++ ) {
+                float[] exact = cache.get( preprocess( candidates.get( i ).getLiteral() ) );
+                if ( exact != null )
+                    candidates.set( i, new Neighbour( candidates.get( i ).getLiteral(), cosineDistance( exact, emb ) ) );
             }
         }
-        return nearestLiteral;
+        if ( reranking )
+            candidates.sort( Comparator.comparingDouble( Neighbour::getDistance ) );
+
+        List<Neighbour> nearest = new ArrayList<>( k );
+        for ( Neighbour n : candidates ) {
+            // The candidates are sorted: all the next ones are farther
+            if ( nearest.size() == k || n.getDistance() > maxDistance )
+                break;
+            nearest.add( n );
+        }
+        return nearest;
+    }
+
+    /**
+     * Searches the k nearest rows of a subspace.
+     * Small subspaces are scanned exactly; the exact scan is also used when a selective filter leaves the index without results.
+     * @param index the index of the subspace
+     * @param emb the query vector
+     * @param embNorm the norm of the query vector
+     * @param k the number of rows to find
+     * @param filter the filter on the rows (null accepts all)
+     * @return the rows found, the nearest first
+     */
+    private int[] searchNearest( NearestIndex index, float[] emb, double embNorm, int k, IntPredicate filter ) {
+        VectorStore store = index.getStore();
+        if ( index instanceof ExactIndex || store.size() < exactBelow )
+            return new ExactIndex( store ).search( emb, embNorm, k, filter );
+        int[] found = index.search( emb, embNorm, k, filter );
+        if ( found.length < k && filter != null )
+            return new ExactIndex( store ).search( emb, embNorm, k, filter );
+        return found;
     }
 
     /**
-     * Get a list of examples (terms or plans with same head and arity) from the space
+     * Get a list of examples (terms or plans with same head and arity) from the space.
+     * The literals are found through the functor and arity index of the subspace.
+     * If max_examples is set and there are more examples, only the ones nearest to the found literal are kept.
      * @param ilf the illocutionary force of the message
      * @param nearest the found nearest literal in the space
-     * @return a list of all the literals with same functor and arity
+     * @return the nearest literal followed by the literals with same functor and arity
      */
     protected List<Literal> getExamples( Literal ilf, Literal nearest ) {
-        List<Literal> examples = new ArrayList<>();
-        examples.add( nearest );
+        VectorStore store = getStore( examplesSubSpace( ilf ) );
+        return read( () -> {
+            List<Literal> examples = new ArrayList<>();
+            examples.add( nearest );
+            int[] rows = store.rowsOf( nearest.getFunctor(), nearest.getArity() );
+            if ( maxExamples > 0 && rows.length > maxExamples )
+                rows = rankExamples( store, store.rowOf( nearest ), rows );
+            for ( int row : rows )
+                examples.add( store.literalAt( row ) );
+            return examples;
+        } );
+    }
 
-        // achieve and askHow are in the plans subspace, all the others in the terms
-        String subSpace = "terms";
+    /**
+     * Get the subspace of the examples: achieve and askHow are in the plans subspace, all the others in the terms
+     * @param ilf the illocutionary force of the message
+     * @return the subspace name
+     */
+    private static String examplesSubSpace( Literal ilf ) {
         if ( ilf.equalsAsStructure( createLiteral( "achieve" ) ) || ilf.equalsAsStructure( createLiteral( "askHow" ) ) )
-            subSpace = "plans";
-
-        // check if same
-        for ( Literal lit : getSubSpace( subSpace ) )
-            if ( nearest.getFunctor().equals( lit.getFunctor() ) && nearest.getArity() == lit.getArity() )
-                examples.add( lit );
+            return "plans";
+        return "terms";
+    }
 
-        return examples;
+    /**
+     * Keeps the max_examples rows nearest to the found literal
+     * @param store the subspace of the examples
+     * @param nearestRow the row of the found literal (-1 if it is not in the subspace)
+     * @param rows the rows of all the examples
+     * @return the rows kept, the nearest first; the found literal is not repeated
+     */
+    private int[] rankExamples( VectorStore store, int nearestRow, int[] rows ) {
+        // Without a reference vector keep the first examples added
+        if ( nearestRow == -1 )
+            return Arrays.copyOf( rows, maxExamples );
+        CandidateHeap kept = new CandidateHeap( maxExamples, true );
+        for ( int row : rows ) {
+            if ( row == nearestRow )
+                continue;
+            double dist = store.distance( nearestRow, row );
+            if ( kept.size() < maxExamples ) {
+                kept.push( row, dist );
+            } else if ( dist < kept.peekDist() ) {
+                kept.pop();
+                kept.push( row, dist );
+            }
+        }
+        return kept.drainSorted();
     }
 
-}
\ No newline at end of file
+}
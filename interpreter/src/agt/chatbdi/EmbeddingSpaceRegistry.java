@@ -0,0 +1,88 @@
+package chatbdi;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import jason.runtime.Settings;
+
+/**
+ * The registry of the embedding spaces shared by the interpreters running in the same JVM.
+ * The interpreters using the same embedding model share one space: the literals of the mas are embedded and stored once,
+ * whatever the number of interpreters. Each interpreter gets its own view of the space, and the space is closed when
+ * the last view is released.
+ * The shared space is built with the settings of the first interpreter using the model (index, quantization and cache).
+ * @author Andrea Gatti
+ */
+public final class EmbeddingSpaceRegistry {
+
+    /** The shared spaces, by embedding model */
+    private static final Map<String, Entry> shared = new HashMap<>();
+    /** The entry of every view given */
+    private static final Map<EmbeddingSpace, Entry> views = new IdentityHashMap<>();
+
+    private EmbeddingSpaceRegistry() {}
+
+    /**
+     * Get a view of the embedding space for an interpreter
+     * @param ollama the Ollama object of the interpreter
+     * @param stts the agent settings:
+     * <ul>
+     * <li> emb_shared: 'false' gives the interpreter a space of its own (default 'true') </li>
+     * </ul>
+     * @return the view, to release when the interpreter stops
+     */
+    public static synchronized EmbeddingSpace acquire( Ollama ollama, Settings stts ) {
+        String sttsShared = stts.getUserParameter( "emb_shared" );
+        Entry entry;
+        if ( sttsShared != null && !Boolean.parseBoolean( sttsShared ) ) {
+            entry = new Entry( null, new EmbeddingSpace( ollama, stts ) );
+        } else {
+            entry = shared.get( ollama.EMB_MODEL );
+            if ( entry == null ) {
+                entry = new Entry( ollama.EMB_MODEL, new EmbeddingSpace( ollama, stts ) );
+                shared.put( ollama.EMB_MODEL, entry );
+            }
+        }
+        EmbeddingSpace view = new EmbeddingSpace( entry.space, ollama, stts );
+        entry.refs++;
+        views.put( view, entry );
+        return view;
+    }
+
+    /**
+     * Releases a view: when no view of a space is left, the space is closed
+     * @param view the view given by acquire
+     */
+    public static synchronized void release( EmbeddingSpace view ) {
+        Entry entry = views.remove( view );
+        if ( entry == null || --entry.refs > 0 )
+            return;
+        if ( entry.model != null )
+            shared.remove( entry.model );
+        entry.space.close();
+    }
+
+    /**
+     * Get the number of views of the space of an embedding model
+     * @param model the embedding model
+     * @return the number of views not released, 0 if there is no shared space for the model
+     */
+    public static synchronized int getRefs( String model ) {
+        Entry entry = shared.get( model );
+        return entry == null ? 0 : entry.refs;
+    }
+
+    /** A space with the number of its views */
+    private static class Entry {
+        /** The embedding model, null if the space is not shared */
+        final String model;
+        final EmbeddingSpace space;
+        int refs = 0;
+
+        Entry( String model, EmbeddingSpace space ) {
+            this.model = model;
+            this.space = space;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package chatbdi;
+
+import java.util.function.IntPredicate;
+
+/**
+ * This index answers the queries scanning all the rows of the store.
+ * It is exact and it is used as a fallback for small spaces.
+ * @author Andrea Gatti
+ */
+public class ExactIndex implements NearestIndex {
+
+    /** The store to scan */
+    private final VectorStore store;
+
+    /**
+     * Build an exact index over a store
+     * @param store the vector store
+     */
+    public ExactIndex( VectorStore store ) {
+        this.store = store;
+    }
+
+    /** The scan does not need any structure: nothing to do */
+    @Override
+    public void add( int row ) {
+    }
+
+    @Override
+    public int[] search( float[] q, double qNorm, int k, IntPredicate filter ) {
+        // Keep the k nearest rows with the farthest on top
+        CandidateHeap nearest = new CandidateHeap( k, true );
+        for ( int row = 0; row < store.size(); row++ ) {
+            if ( filter != null && !filter.test( row ) )
+                continue;
+            double dist = store.distance( row, q, qNorm );
+            if ( nearest.size() < k ) {
+                nearest.push( row, dist );
+            } else if ( dist < nearest.peekDist() ) {
+                nearest.pop();
+                nearest.push( row, dist );
+            }
+        }
+        return nearest.drainSorted();
+    }
+
+    @Override
+    public VectorStore getStore() {
+        return store;
+    }
+}
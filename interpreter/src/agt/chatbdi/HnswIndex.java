@@ -0,0 +1,256 @@
+package chatbdi;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * This index implements the Hierarchical Navigable Small World graph for approximate nearest neighbour search.
+ * The graph is built incrementally: every row added to the store is linked to its nearest rows on each layer.
+ * The efSearch parameter trades recall for latency: the higher it is, the more rows are visited for each query.
+ * @author Andrea Gatti
+ * @see <a href="https://arxiv.org/abs/1603.09320">Malkov and Yashunin, 2016</a>
+ */
+public class HnswIndex implements NearestIndex {
+
+    /** The store indexed */
+    private final VectorStore store;
+    /** The number of links created for each new row */
+    private final int m;
+    /** The maximum number of links of a row on the upper layers */
+    private final int maxM;
+    /** The maximum number of links of a row on the bottom layer */
+    private final int maxM0;
+    /** The size of the candidate list while building */
+    private final int efConstruction;
+    /** The size of the candidate list while searching */
+    private final int efSearch;
+    /** The normalization factor for the level generation */
+    private final double levelMult;
+    /** The random generator for the levels (seeded to be reproducible) */
+    private final Random random;
+
+    /** The links of each row: links.get( row )[ level ] contains the neighbours */
+    private final List<int[][]> links;
+    /** The number of neighbours of each row on each level */
+    private final List<int[]> linkCounts;
+    /** The row from which each search starts */
+    private int entryPoint;
+    /** The highest level in the graph */
+    private int maxLevel;
+
+    /**
+     * Build an empty HNSW index
+     * @param store the store to index
+     * @param m the number of links for each new row
+     * @param efConstruction the size of the candidate list while building
+     * @param efSearch the size of the candidate list while searching
+     * @param seed the seed for the level generation
+     */
+    public HnswIndex( VectorStore store, int m, int efConstruction, int efSearch, long seed ) {
+        if ( m < 2 )
+            throw new IllegalArgumentException( "HNSW M must be at least 2" );
+        this.store = store;
+        this.m = m;
+        this.maxM = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = Math.max( efConstruction, m );
+        this.efSearch = Math.max( efSearch, 1 );
+        this.levelMult = 1.0 / Math.log( m );
+        this.random = new Random( seed );
+        this.links = new ArrayList<>();
+        this.linkCounts = new ArrayList<>();
+        this.entryPoint = -1;
+        this.maxLevel = -1;
+    }
+
+    @Override
+    public void add( int row ) {
+        if ( row != links.size() )
+            throw new IllegalArgumentException( "Rows must be added to the index in the store order" );
+        int level = (int) Math.floor( -Math.log( 1.0 - random.nextDouble() ) * levelMult );
+        int[][] rowLinks = new int[ level + 1 ][];
+        for ( int l = 0; l <= level; l++ )
+            rowLinks[ l ] = new int[ ( l == 0 ? maxM0 : maxM ) + 1 ];
+        links.add( rowLinks );
+        linkCounts.add( new int[ level + 1 ] );
+
+        // The first row is the entry point
+        if ( entryPoint == -1 ) {
+            entryPoint = row;
+            maxLevel = level;
+            return;
+        }
+
+        IntToDoubleFunction dist = other -> store.distance( row, other );
+        int ep = entryPoint;
+        // Greedy descent on the layers above the new row level
+        for ( int l = maxLevel; l > level; l-- )
+            ep = greedy( dist, ep, l );
+        // Link the row on each of its layers
+        for ( int l = Math.min( level, maxLevel ); l >= 0; l-- ) {
+            int[] candidates = searchLayer( dist, ep, efConstruction, l, null );
+            int[] neighbours = selectNeighbours( row, candidates, m );
+            for ( int n : neighbours ) {
+                link( row, n, l );
+                link( n, row, l );
+            }
+            ep = candidates[ 0 ];
+        }
+        if ( level > maxLevel ) {
+            maxLevel = level;
+            entryPoint = row;
+        }
+    }
+
+    @Override
+    public int[] search( float[] q, double qNorm, int k, IntPredicate filter ) {
+        if ( entryPoint == -1 )
+            return new int[0];
+        IntToDoubleFunction dist = row -> store.distance( row, q, qNorm );
+        int ep = entryPoint;
+        for ( int l = maxLevel; l > 0; l-- )
+            ep = greedy( dist, ep, l );
+        int[] found = searchLayer( dist, ep, Math.max( efSearch, k ), 0, filter );
+        return found.length > k ? Arrays.copyOf( found, k ) : found;
+    }
+
+    @Override
+    public VectorStore getStore() {
+        return store;
+    }
+
+    /**
+     * Moves greedily towards the query on one layer
+     * @param dist the distance of each row from the query
+     * @param ep the starting row
+     * @param level the layer
+     * @return the nearest row reached
+     */
+    private int greedy( IntToDoubleFunction dist, int ep, int level ) {
+        int current = ep;
+        double currentDist = dist.applyAsDouble( current );
+        boolean changed = true;
+        while ( changed ) {
+            changed = false;
+            int[] neighbours = links.get( current )[ level ];
+            int count = linkCounts.get( current )[ level ];
+            for ( int i = 0; i < count; i++ ) {
+                double d = dist.applyAsDouble( neighbours[ i ] );
+                if ( d < currentDist ) {
+                    currentDist = d;
+                    current = neighbours[ i ];
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search on one layer
+     * @param dist the distance of each row from the query
+     * @param ep the starting row
+     * @param ef the number of rows to keep
+     * @param level the layer
+     * @param filter only the rows accepted are returned, but all of them are traversed (null accepts all)
+     * @return the rows found, the nearest first
+     */
+    private int[] searchLayer( IntToDoubleFunction dist, int ep, int ef, int level, IntPredicate filter ) {
+        BitSet visited = new BitSet( links.size() );
+        CandidateHeap candidates = new CandidateHeap( ef, false );
+        CandidateHeap found = new CandidateHeap( ef, true );
+
+        double epDist = dist.applyAsDouble( ep );
+        visited.set( ep );
+        candidates.push( ep, epDist );
+        if ( filter == null || filter.test( ep ) )
+            found.push( ep, epDist );
+
+        while ( !candidates.isEmpty() ) {
+            double candidateDist = candidates.peekDist();
+            if ( found.size() >= ef && candidateDist > found.peekDist() )
+                break;
+            int candidate = candidates.pop();
+            int[] neighbours = links.get( candidate )[ level ];
+            int count = linkCounts.get( candidate )[ level ];
+            for ( int i = 0; i < count; i++ ) {
+                int n = neighbours[ i ];
+                if ( visited.get( n ) )
+                    continue;
+                visited.set( n );
+                double d = dist.applyAsDouble( n );
+                if ( found.size() < ef || d < found.peekDist() ) {
+                    candidates.push( n, d );
+                    if ( filter == null || filter.test( n ) ) {
+                        found.push( n, d );
+                        if ( found.size() > ef )
+                            found.pop();
+                    }
+                }
+            }
+        }
+        return found.drainSorted();
+    }
+
+    /**
+     * Selects the neighbours of a row with the heuristic of the paper:
+     * a candidate is kept only if it is nearer to the row than to every neighbour already selected.
+     * @param row the row to link
+     * @param candidates the candidates, the nearest first
+     * @param max the maximum number of neighbours
+     * @return the selected neighbours
+     */
+    private int[] selectNeighbours( int row, int[] candidates, int max ) {
+        int[] selected = new int[ Math.min( max, candidates.length ) ];
+        int count = 0;
+        for ( int c : candidates ) {
+            if ( count == selected.length )
+                break;
+            double d = store.distance( row, c );
+            boolean keep = true;
+            for ( int i = 0; i < count && keep; i++ )
+                if ( store.distance( c, selected[ i ] ) < d )
+                    keep = false;
+            if ( keep )
+                selected[ count++ ] = c;
+        }
+        // Fill the free slots with the nearest discarded candidates
+        for ( int c : candidates ) {
+            if ( count == selected.length )
+                break;
+            boolean present = false;
+            for ( int i = 0; i < count && !present; i++ )
+                present = selected[ i ] == c;
+            if ( !present )
+                selected[ count++ ] = c;
+        }
+        return selected;
+    }
+
+    /**
+     * Adds a directed link, shrinking the neighbours if they exceed the maximum
+     * @param from the row to update
+     * @param to the new neighbour
+     * @param level the layer
+     */
+    private void link( int from, int to, int level ) {
+        int[] neighbours = links.get( from )[ level ];
+        int[] counts = linkCounts.get( from );
+        int max = level == 0 ? maxM0 : maxM;
+        neighbours[ counts[ level ]++ ] = to;
+        if ( counts[ level ] <= max )
+            return;
+        // Too many links: keep the best ones
+        CandidateHeap sorted = new CandidateHeap( counts[ level ], false );
+        for ( int i = 0; i < counts[ level ]; i++ )
+            sorted.push( neighbours[ i ], store.distance( from, neighbours[ i ] ) );
+        int[] kept = selectNeighbours( from, sorted.drainSorted(), max );
+        System.arraycopy( kept, 0, neighbours, 0, kept.length );
+        counts[ level ] = kept.length;
+    }
+}
@@ -0,0 +1,165 @@
+package chatbdi;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import jason.asSyntax.Literal;
+
+/**
+ * The IlfCache keeps the Illocutionary Force of the last messages classified, so that repeated messages do not call
+ * the classification model again. The cache is a bounded LRU map:
+ * <ul>
+ * <li> the exact tier is keyed by the normalized message: lower case, single spaces, no mentions and no punctuation
+ * around it, except for the final question or exclamation mark that the classification may depend on </li>
+ * <li> the optional similarity tier gives the Illocutionary Force of the cached message whose embedding is nearest to
+ * the one of the new message, if their cosine similarity reaches the threshold </li>
+ * </ul>
+ * @author Andrea Gatti
+ */
+public class IlfCache {
+
+    /** A cached classification */
+    private static class Entry {
+        final Literal ilf;
+        /** The unit embedding of the message, null if not known */
+        final float[] emb;
+
+        Entry( Literal ilf, float[] emb ) {
+            this.ilf = ilf;
+            this.emb = emb;
+        }
+    }
+
+    /** The classifications by normalized message, in access order */
+    private final LinkedHashMap<String, Entry> entries;
+    /** The minimum cosine similarity of the similarity tier, NaN if the tier is disabled */
+    private final double similarity;
+
+    private long hits = 0;
+    private long similarHits = 0;
+    private long misses = 0;
+
+    /**
+     * Build a new cache
+     * @param size the maximum number of messages kept
+     * @param similarity the minimum cosine similarity to reuse the classification of another message (NaN to use only exact matches)
+     */
+    public IlfCache( int size, double similarity ) {
+        this.similarity = similarity;
+        this.entries = new LinkedHashMap<>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest ) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Normalizes a message: the messages with the same normal form get the same classification
+     * @param msg the message
+     * @return the normalized message
+     */
+    public static String normalize( String msg ) {
+        String norm = msg.replaceAll( "\\s*@\\S+", " " )
+            .toLowerCase( Locale.ROOT )
+            .replaceAll( "\\s+", " " )
+            .trim();
+        // Keep the last question or exclamation mark
+        char last = norm.isEmpty() ? ' ' : norm.charAt( norm.length() - 1 );
+        norm = norm.replaceAll( "^[\\p{Punct}\\s]+|[\\p{Punct}\\s]+$", "" );
+        if ( last == '?' || last == '!' )
+            norm += last;
+        return norm;
+    }
+
+    /**
+     * Check if the similarity tier is enabled
+     * @return true if the classification of a similar message can be reused
+     */
+    public boolean usesSimilarity() {
+        return !Double.isNaN( similarity );
+    }
+
+    /**
+     * Get the classification of a message with the same normal form
+     * @param key the normalized message
+     * @return a copy of the Illocutionary Force, null if the message is not cached
+     */
+    public synchronized Literal get( String key ) {
+        Entry entry = entries.get( key );
+        if ( entry == null )
+            return null;
+        hits++;
+        return entry.ilf.copy();
+    }
+
+    /**
+     * Get the classification of the most similar message, if similar enough
+     * @param emb the embedding of the message
+     * @return a copy of the Illocutionary Force, null if no cached message reaches the threshold
+     */
+    public Literal getSimilar( float[] emb ) {
+        float[] unit = usesSimilarity() ? unit( emb ) : null;
+        synchronized ( this ) {
+            Entry best = null;
+            double bestSimilarity = similarity;
+            if ( unit != null ) {
+                for ( Entry entry : entries.values() ) {
+                    if ( entry.emb == null || entry.emb.length != unit.length )
+                        continue;
+                    double s = VectorMath.dot( entry.emb, unit );
+                    if ( s >= bestSimilarity ) {
+                        bestSimilarity = s;
+                        best = entry;
+                    }
+                }
+            }
+            if ( best == null ) {
+                misses++;
+                return null;
+            }
+            similarHits++;
+            return best.ilf.copy();
+        }
+    }
+
+    /**
+     * Stores the classification of a message
+     * @param key the normalized message
+     * @param ilf the Illocutionary Force
+     * @param emb the embedding of the message (null if not known or not needed)
+     */
+    public void put( String key, Literal ilf, float[] emb ) {
+        Entry entry = new Entry( ilf.copy(), usesSimilarity() && emb != null ? unit( emb ) : null );
+        synchronized ( this ) {
+            entries.put( key, entry );
+        }
+    }
+
+    /**
+     * Counts a miss of the exact tier when the similarity tier is not consulted
+     */
+    public synchronized void miss() {
+        misses++;
+    }
+
+    private static float[] unit( float[] emb ) {
+        try {
+            return VectorMath.normalize( emb );
+        } catch ( IllegalArgumentException iae ) {
+            return null;
+        }
+    }
+
+    /** @return the number of messages cached */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return the statistics of the cache, for logging */
+    @Override
+    public synchronized String toString() {
+        return "IlfCache[size=" + entries.size() + ", hits=" + hits + ", similar hits=" + similarHits + ", misses=" + misses + "]";
+    }
+}
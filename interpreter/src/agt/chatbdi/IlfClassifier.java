@@ -0,0 +1,147 @@
+package chatbdi;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+import jason.asSyntax.Literal;
+import static jason.asSyntax.ASSyntax.*;
+
+/**
+ * The IlfClassifier classifies the Illocutionary Force of a message from its embedding, without calling a model.
+ * It is a nearest centroid classifier: each Illocutionary Force is represented by the mean of the unit embeddings of
+ * its labelled examples, and a message gets the Illocutionary Force of the most similar centroid.
+ * The classification is confident only if the similarity with the nearest centroid reaches minSimilarity and
+ * exceeds the similarity with the second one by margin: otherwise no Illocutionary Force is given and the message
+ * is classified by the model. The margin needs a second centroid, so the examples must cover at least two
+ * Illocutionary Forces.
+ * The examples file has one example per line, as "ilf,sentence": the blank lines, the lines starting with '#'
+ * and the lines with an unsupported Illocutionary Force (e.g. a header) are skipped.
+ * @author Andrea Gatti
+ */
+public class IlfClassifier {
+
+    /** The Illocutionary Forces, in the order of the centroids */
+    private final String[] ilfs;
+    /** The unit centroids */
+    private final float[][] centroids;
+    /** The minimum similarity with the nearest centroid */
+    private final double minSimilarity;
+    /** The minimum difference between the similarity of the nearest centroid and of the second one */
+    private final double margin;
+
+    /**
+     * Build a classifier from the embeddings of labelled examples
+     * @param examples the embeddings of the examples, by Illocutionary Force
+     * @param minSimilarity the minimum similarity with the nearest centroid
+     * @param margin the minimum difference between the similarities of the two nearest centroids
+     * @throws IllegalArgumentException if the examples cover less than two Illocutionary Forces
+     */
+    public IlfClassifier( Map<String, List<float[]>> examples, double minSimilarity, double margin ) {
+        this.minSimilarity = minSimilarity;
+        this.margin = margin;
+        List<String> names = new ArrayList<>();
+        List<float[]> means = new ArrayList<>();
+        for ( Map.Entry<String, List<float[]>> entry : examples.entrySet() ) {
+            float[] sum = null;
+            for ( float[] emb : entry.getValue() ) {
+                if ( emb == null )
+                    continue;
+                float[] unit = VectorMath.normalize( emb );
+                if ( sum == null )
+                    sum = new float[ unit.length ];
+                for ( int i = 0; i < unit.length; i++ )
+                    sum[ i ] += unit[ i ];
+            }
+            if ( sum == null )
+                continue;
+            names.add( entry.getKey() );
+            means.add( VectorMath.normalize( sum ) );
+        }
+        if ( names.isEmpty() )
+            throw new IllegalArgumentException( "No example to train the Illocutionary Force classifier" );
+        // With one centroid every message would be confident, whatever the margin
+        if ( names.size() < 2 )
+            throw new IllegalArgumentException( "The Illocutionary Force classifier needs examples of at least two Illocutionary Forces, only " + names.get( 0 ) + " given" );
+        this.ilfs = names.toArray( new String[0] );
+        this.centroids = means.toArray( new float[0][] );
+    }
+
+    /**
+     * Trains a classifier on the examples of a file
+     * @param file the examples file
+     * @param ollama the Ollama object embedding the examples
+     * @param supportedIlfs the supported Illocutionary Forces
+     * @param minSimilarity the minimum similarity with the nearest centroid
+     * @param margin the minimum difference between the similarities of the two nearest centroids
+     * @param logger the logger for the skipped lines
+     * @return the classifier
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the valid examples of the file cover less than two Illocutionary Forces
+     */
+    public static IlfClassifier train( Path file, Ollama ollama, String[] supportedIlfs, double minSimilarity, double margin, Logger logger ) throws IOException {
+        List<String> supported = Arrays.asList( supportedIlfs );
+        List<String> labels = new ArrayList<>();
+        List<String> sentences = new ArrayList<>();
+        for ( String line : Files.readAllLines( file ) ) {
+            int comma = line.indexOf( ',' );
+            if ( line.isBlank() || line.startsWith( "#" ) )
+                continue;
+            String ilf = comma < 0 ? line.trim() : line.substring( 0, comma ).trim();
+            if ( comma < 0 || !supported.contains( ilf ) ) {
+                logger.fine( () -> "Skipped Illocutionary Force example: " + line );
+                continue;
+            }
+            // The messages are embedded without mentions, as the interpreter does
+            String sentence = line.substring( comma + 1 ).trim().replaceAll( "^\"|\"$", "" ).replaceAll( "\\s*@\\S+", "" );
+            labels.add( ilf );
+            sentences.add( sentence );
+        }
+        List<float[]> embs = ollama.embedAll( sentences );
+        Map<String, List<float[]>> examples = new LinkedHashMap<>();
+        for ( int i = 0; i < labels.size(); i++ )
+            examples.computeIfAbsent( labels.get( i ), ilf -> new ArrayList<>() ).add( embs.get( i ) );
+        return new IlfClassifier( examples, minSimilarity, margin );
+    }
+
+    /**
+     * Classifies a message from its embedding
+     * @param emb the embedding of the message
+     * @return the Illocutionary Force, null if the classification is not confident
+     */
+    public Literal classify( float[] emb ) {
+        if ( emb == null || emb.length != centroids[0].length )
+            return null;
+        double norm = Math.sqrt( VectorMath.dot( emb, emb ) );
+        if ( norm == 0 )
+            return null;
+        int best = -1;
+        double bestSimilarity = Double.NEGATIVE_INFINITY;
+        double secondSimilarity = Double.NEGATIVE_INFINITY;
+        for ( int c = 0; c < centroids.length; c++ ) {
+            double s = VectorMath.dot( centroids[ c ], emb ) / norm;
+            if ( s > bestSimilarity ) {
+                secondSimilarity = bestSimilarity;
+                bestSimilarity = s;
+                best = c;
+            } else if ( s > secondSimilarity ) {
+                secondSimilarity = s;
+            }
+        }
+        if ( bestSimilarity < minSimilarity || bestSimilarity - secondSimilarity < margin )
+            return null;
+        return createLiteral( ilfs[ best ] );
+    }
+
+    /** @return the Illocutionary Forces with a centroid, for logging */
+    @Override
+    public String toString() {
+        return "IlfClassifier" + Arrays.toString( ilfs );
+    }
+}
@@ -9,8 +9,13 @@ import java.util.logging.Level;
 // // import java.util.HashSet;
 // // import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import jason.asSyntax.*;
 // // import jason.asSemantics.*;
@@ -44,12 +49,25 @@ public class Interpreter extends AgArch {
     private ChatUI chatUI;
     /** EmbeddingSpace manages the embedding space */
     private EmbeddingSpace embSpace;
+    /** true if the embedding space is updated with the changes recorded by the watchers, false to rescan all the agents */
+    private boolean incrementalUpdates = true;
+    /** The watchers recording the changes of each agent, shared by the interpreters using the same embedding space */
+    private Map<String, AgentWatcher> watchers;
+    /** TranslationExecutor runs the translations of the incoming messages */
+    private TranslationExecutor translator;
+    /** The translations of the last user messages, null if disabled */
+    private TranslationCache translations;
+    /** true if the translations of the incoming messages are shown while they are generated */
+    private boolean streamTranslations = true;
+    /** true if the translations of the user messages of this interpreter are traced */
+    private boolean traceRequests = RequestTrace.isEnabledByDefault();
 
     /**
      * Initializes all what is needed for the interpreter:
      * <ul>
      * <li> the Ollama client </li>
      * <li> the embedding space </li>
+     * <li> the executor for incoming messages translation </li>
      * <li> the chat UI </li>
      * </ul>
      */
@@ -59,11 +77,28 @@ public class Interpreter extends AgArch {
         logFine( "init: supported ilfs: " + SUPPORTED_ILF );
         try {
             Settings stts = getTS().getSettings();
-            ollama = new Ollama( SUPPORTED_ILF, getAgName(), stts );
+            ollama = new Ollama( SUPPORTED_ILF, getAgName(), stts, getTS().getLogger() );
+            String sttsTrace = stts.getUserParameter( "trace_requests" );
+            if ( sttsTrace != null )
+                traceRequests = Boolean.parseBoolean( sttsTrace );
             logInfo( "Initializing Ollama models" );
-            embSpace = new EmbeddingSpace( ollama );
+            String sttsUpdates = stts.getUserParameter( "emb_updates" );
+            if ( sttsUpdates != null )
+                incrementalUpdates = !sttsUpdates.equals( "full" );
+            embSpace = EmbeddingSpaceRegistry.acquire( ollama, stts );
+            int translationsSize = 256;
+            String sttsTranslations = stts.getUserParameter( "nl2kqml_cache_size" );
+            if ( sttsTranslations != null )
+                translationsSize = Integer.parseInt( sttsTranslations );
+            if ( translationsSize > 0 )
+                translations = new TranslationCache( translationsSize );
+            watchers = embSpace.getWatchers();
             initEmbeddingSpace();
             logInfo( "Initializing the Embedding Space" );
+            translator = createTranslator( stts );
+            String sttsStream = stts.getUserParameter( "stream_translations" );
+            if ( sttsStream != null )
+                streamTranslations = Boolean.parseBoolean( sttsStream );
             chatUI = new ChatUI( getTS().getLogger(), getAgName() );
         } catch ( ConnectException ce ) {
             logSevere( ce.getMessage() );
@@ -89,14 +124,51 @@ public class Interpreter extends AgArch {
         
         while( !mbox.isEmpty() ) {
             Message m = mbox.poll();
-            new Thread( () -> {
-                String sender = m.getSender();
-                UUID id = chatUI.genUUID();
-                chatUI.showMsg( id, sender );
-                String msg = kqml2nl( m );
-                chatUI.setMsg( id ,msg );
-            }).start();
+            // The placeholder is shown now: messages keep the arrival order whatever their translation time
+            UUID id = chatUI.genUUID();
+            chatUI.showMsg( id, m.getSender() );
+            if ( streamTranslations )
+                translator.submit( () -> kqml2nl( m, token -> chatUI.appendMsg( id, token ) ), this::translationError, msg -> chatUI.setMsg( id, msg ) );
+            else
+                translator.submit( () -> kqml2nl( m ), this::translationError, msg -> chatUI.setMsg( id, msg ) );
         }
+        logFine( () -> "Incoming translations: " + translator );
+    }
+
+    /**
+     * Stops the translations of the incoming messages and releases the embedding space
+     */
+    @Override
+    public void stop() {
+        if ( translator != null )
+            translator.shutdown();
+        if ( embSpace != null )
+            EmbeddingSpaceRegistry.release( embSpace );
+        super.stop();
+    }
+
+    /**
+     * Creates the executor for the translation of incoming messages
+     * @param stts the agent settings:
+     * <ul>
+     * <li> translation_threads: 'virtual' (default) to use a virtual thread for each message, or the size of a thread pool </li>
+     * <li> translation_max_in_flight: the maximum number of translations sent to Ollama at the same time (default 4) </li>
+     * </ul>
+     * @return the executor
+     */
+    private TranslationExecutor createTranslator( Settings stts ) {
+        boolean virtual = true;
+        int poolSize = 4;
+        int maxInFlight = 4;
+        String sttsThreads = stts.getUserParameter( "translation_threads" );
+        if ( sttsThreads != null && !sttsThreads.equals( "virtual" ) ) {
+            virtual = false;
+            poolSize = Integer.parseInt( sttsThreads );
+        }
+        String sttsInFlight = stts.getUserParameter( "translation_max_in_flight" );
+        if ( sttsInFlight != null )
+            maxInFlight = Integer.parseInt( sttsInFlight );
+        return new TranslationExecutor( virtual, poolSize, maxInFlight );
     }
 
     /**
@@ -106,10 +178,31 @@ public class Interpreter extends AgArch {
      * @throws Exception if broadcast or sendMsg raise it
      */
     protected int handleUserMsg( UUID id, List<String> receivers, String msg ) throws Exception, ParseException {
+        RequestTrace trace = RequestTrace.start( id, getAgName(), traceRequests );
+        try {
+            int result = handleUserMsg( id, receivers, msg, trace );
+            trace.end( result == 1 ? "sent" : result == 0 ? "partially sent" : "not sent" );
+            return result;
+        } catch ( Exception e ) {
+            trace.end( "error " + e );
+            throw e;
+        }
+    }
+
+    /**
+     * Translates and send a user message to the agents, recording the steps in a trace
+     * @param id the chat entry of the message
+     * @param receivers the list of receiver agents
+     * @param msg the message written on the chat
+     * @param trace the trace of the request
+     * @throws Exception if broadcast or sendMsg raise it
+     */
+    private int handleUserMsg( UUID id, List<String> receivers, String msg, RequestTrace trace ) throws Exception, ParseException {
         Collection<String> agNames = getRuntimeServices().getAgentsName();
         logInfo("Starting");
 
         updateEmbeddingSpace();
+        trace.step( "update" );
 
         boolean partial = false;
         if ( !receivers.isEmpty() ) {
@@ -129,7 +222,7 @@ public class Interpreter extends AgArch {
         }
         // Translates the message into a KQML Message
         logInfo("Translating the message");
-        Message m = nl2kqml( receivers, msg );
+        Message m = nl2kqml( id, receivers, msg, trace );
 
         if ( m == null ) {
             logInfo( "The generated message is null");
@@ -169,21 +262,108 @@ public class Interpreter extends AgArch {
      * @throws Exception if it fails sending or broadcasting the message
      */
     protected Message nl2kqml( List<String> receivers, String msg ) throws Exception, ParseException {
+        RequestTrace trace = RequestTrace.start( null, getAgName(), traceRequests );
+        Message m = nl2kqml( null, receivers, msg, trace );
+        trace.end( m == null ? "not translated" : "translated" );
+        return m;
+    }
+
+    /**
+     * Translates a user message into a KQML Message object.
+     * A message already translated for the same receivers, with their domains unchanged, is taken from the cache.
+     * The classification of the message and its embedding do not depend on each other: they are computed in parallel.
+     * @param id the chat entry of the message (can be null)
+     * @param receivers the list of receiver agents
+     * @param msg the message written on the chat
+     * @param trace the trace of the request
+     * @return the KQML Message
+     * @throws ParseException if the resulting translation is not syntactically correct
+     * @throws Exception if it fails sending or broadcasting the message
+     */
+    protected Message nl2kqml( UUID id, List<String> receivers, String msg, RequestTrace trace ) throws Exception, ParseException {
         // If the message is empty return
         if ( msg.trim().isEmpty() )
             return null;
-        // Classify the message
-        Literal ilf = ollama.classify( msg );
-        // Generate the final term
-        Literal term = generateTerm( receivers, ilf, msg );
+        // The versions of the space are taken before the translation: a change during it makes the translation stale
+        String cacheKey = translations == null ? null : TranslationCache.key( msg, receivers );
+        long domainVersion = embSpace.getVersion( receivers );
+        if ( cacheKey != null ) {
+            TranslationCache.Entry cached = translations.get( cacheKey, embSpace, receivers );
+            if ( cached != null ) {
+                Literal term = cached.getTerm();
+                trace.step( "cache", () -> term );
+                logInfo( "Translation found in the cache: \n ilf: " + cached.getIlf() + "\n term: " + term );
+                return new Message( cached.getIlf().toString(), this.getAgName(), null, term );
+            }
+        }
+        // Classify the message and embed it (without mentions) at the same time
+        String plainMsg = msg.replaceAll( "\\s*@\\S+", "" );
+        CompletableFuture<float[]> embFuture = ollama.embedAsync( id, plainMsg );
+        CompletableFuture<Literal> ilfFuture = ollama.classifyAsync( id, msg, embFuture );
+        // Fail as soon as one of them fails, without waiting for the other
+        CompletableFuture<Void> both = CompletableFuture.allOf( ilfFuture, embFuture );
+        ilfFuture.whenComplete( ( r, e ) -> { if ( e != null ) both.completeExceptionally( e ); } );
+        embFuture.whenComplete( ( r, e ) -> { if ( e != null ) both.completeExceptionally( e ); } );
+        try {
+            both.join();
+        } catch ( CompletionException ce ) {
+            ilfFuture.cancel( true );
+            embFuture.cancel( true );
+            throw failure( ce, ilfFuture, embFuture );
+        }
+        Literal ilf = ilfFuture.join();
+        float[] emb = embFuture.join();
+        trace.step( "classify+embed", () -> ilf );
+        // Find the nearest literal and generate the final term
+        Literal nearest = findNearest( receivers, ilf, emb, trace );
+        long examplesVersion = nearest == null ? 0 : embSpace.getExamplesVersion( ilf, nearest );
+        Literal term = nearest == null ? null : generateTerm( ilf, plainMsg, nearest, trace );
+        if ( term == null ) {
+            logInfo( "No literal is near enough to the message: it is not translated" );
+            if ( id != null && chatUI != null )
+                chatUI.showOutOfDomainNotice( id );
+            return null;
+        }
         // If the computed ilf is an askHow add the triggering +! part to the term
         if ( ilf.equalsAsStructure( createLiteral( "askHow" ) ) )
             term = new Trigger( Trigger.TEOperator.add, Trigger.TEType.achieve, term );
         logInfo( "Generated: \n ilf: " + ilf + "\n term: " + term );
+        if ( cacheKey != null ) {
+            translations.put( cacheKey, new TranslationCache.Entry( ilf, term, nearest, domainVersion, examplesVersion ) );
+            logFine( () -> "Translations: " + translations );
+        }
 
         return new Message( ilf.toString(), this.getAgName(), null, term );
     }
 
+    /**
+     * Get the failure of parallel steps: the failures of the other steps, if different, are added as suppressed
+     * @param ce the failure thrown waiting for the steps
+     * @param steps the steps, already completed or cancelled
+     * @return the exception to throw
+     */
+    private static Exception failure( CompletionException ce, CompletableFuture<?>... steps ) {
+        Throwable first = ce.getCause() == null ? ce : ce.getCause();
+        for ( CompletableFuture<?> step : steps ) {
+            if ( step.isCancelled() || !step.isCompletedExceptionally() )
+                continue;
+            Throwable other = step.handle( ( r, e ) -> e instanceof CompletionException && e.getCause() != null ? e.getCause() : e ).join();
+            if ( other != null && other != first )
+                first.addSuppressed( other );
+        }
+        return first instanceof Exception ? (Exception) first : ce;
+    }
+
+    /**
+     * Reports a failed translation of an incoming message
+     * @param e the cause of the failure
+     * @return the text shown on the chat in place of the translation
+     */
+    private String translationError( Throwable e ) {
+        logSevere( "Translation of an incoming message failed: " + e );
+        return "Error showing the message: " + e.getMessage();
+    }
+
     /**
      * This method translates KQML into Natural Language
      * @param m the KQML Message
@@ -199,55 +379,121 @@ public class Interpreter extends AgArch {
     }
 
     /**
-     * Generates the final term to send 
+     * This method translates KQML into Natural Language, streaming the translation while it is generated
+     * @param m the KQML Message
+     * @param onToken called with each piece of the translation, in order
+     * @return the full translation
+     */
+    protected String kqml2nl( Message m, Consumer<String> onToken ) {
+        try {
+            return ollama.generate( m, onToken );
+        } catch ( IOException ioe ) {
+            logSevere( ioe.getMessage() );
+        }
+        return "Error showing the message";
+    }
+
+    /**
+     * Finds the literal of the space nearest to the message
      * @param receivers who will receive the message: we will use their BB and PL for translation
      * @param ilf the Illocutionary Force classified
-     * @param msg the message sent by the user
-     * @return the term generated from the message
-     * @throws ParseException if the generated term is not syntactically correct
+     * @param emb the embedding of the message
+     * @param trace the trace of the request
+     * @return the nearest literal, null if no literal of the space is near enough to the message
      */
-    private Literal generateTerm( List<String> receivers, Literal ilf, String msg ) throws ParseException {
-        msg = msg.replaceAll( "\\s*@\\S+", "" );
+    private Literal findNearest( List<String> receivers, Literal ilf, float[] emb, RequestTrace trace ) {
         String subSpace = "terms";
         if ( ilf.equals( "achieve" ) )
             subSpace = "plans";
-        Literal nearest = embSpace.findNearest( receivers, subSpace, msg );
+        Literal nearest = embSpace.findNearest( receivers, subSpace, emb );
+        trace.step( "nearest", () -> nearest );
+        return nearest;
+    }
+
+    /**
+     * Generates the final term to send 
+     * @param ilf the Illocutionary Force classified
+     * @param msg the message sent by the user, without mentions
+     * @param nearest the literal of the receivers domains nearest to the message
+     * @param trace the trace of the request
+     * @return the term generated from the message
+     * @throws ParseException if the generated term is not syntactically correct
+     */
+    private Literal generateTerm( Literal ilf, String msg, Literal nearest, RequestTrace trace ) throws ParseException {
         try {
-            System.out.println( "[LOG] " + nearest );
+            logFine( () -> "Nearest literal: " + nearest );
             List<Literal> examples = embSpace.getExamples( ilf, nearest );
-            return ollama.generate( msg, nearest, ilf, examples );
+            trace.step( "examples", examples::size );
+            Literal term = ollama.generate( msg, nearest, ilf, examples );
+            trace.step( "generate", () -> term );
+            return term;
         } catch( IOException ioe ) {
             throw new IllegalArgumentException( "Prompt loading caused a IO Exception: check the file path. Full error: " + ioe.getMessage() );
         }
     }
 
     /**
-     * Inititalizes the embedding space
+     * Inititalizes the embedding space.
+     * If the space is shared, the agents already watched for another interpreter are not scanned again.
      * @throws RemoteException if the agent fails accessing BB or PL of another agent
      */
     private void initEmbeddingSpace() throws RemoteException {
         logInfo( "Initializing content of the Embedding Space" );
         Collection<String> agNames = getRuntimeServices().getAgentsName();
-        for ( String agName : agNames ) {
-            logInfo( "Considering " + agName );
-            Agent ag = RunLocalMAS.getRunner().getAg( agName ).getTS().getAg();
-            BeliefBase bb = ag.getBB().clone();
-            PlanLibrary pl = ag.getPL().clone();
-            embSpace.update( agName, bb, pl );
+        synchronized ( watchers ) {
+            for ( String agName : agNames ) {
+                AgentWatcher watcher = watchers.get( agName );
+                if ( watcher != null ) {
+                    logInfo( agName + " is already in the shared space" );
+                    watcher.drainTo( embSpace );
+                    continue;
+                }
+                logInfo( "Considering " + agName );
+                scanAgent( agName );
+            }
         }
         embSpace.print();
     }
 
+    /**
+     * Updates the embedding space with the current content of all the agents.
+     * In incremental mode only the changes recorded by the watchers are applied, and new agents are fully scanned.
+     * The messages are translated concurrently: one update runs at a time, the others wait for it and then apply
+     * only what changed meanwhile, while the translations already updated keep searching the space.
+     * @throws RemoteException if the agent fails accessing BB or PL of another agent
+     */
     private void updateEmbeddingSpace() throws RemoteException {
         logInfo( "Updating content of the Embedding Space" );
         Collection<String> agNames = getRuntimeServices().getAgentsName();
-        for ( String agName : agNames ) {
-            logInfo( "Considering " + agName );
-            Agent ag = RunLocalMAS.getRunner().getAg( agName ).getTS().getAg();
-            BeliefBase bb = ag.getBB().clone();
-            PlanLibrary pl = ag.getPL().clone();
-            embSpace.update( agName, bb, pl );
+        synchronized ( watchers ) {
+            for ( String agName : agNames ) {
+                AgentWatcher watcher = watchers.get( agName );
+                if ( watcher == null ) {
+                    logInfo( "Considering " + agName );
+                    scanAgent( agName );
+                } else if ( watcher.hasChanges() ) {
+                    logFine( () -> "Applying the changes of " + agName );
+                    watcher.drainTo( embSpace );
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to the embedding space the whole content of an agent.
+     * In incremental mode the agent is watched before being scanned, so no change gets lost.
+     * @param agName the agent to scan
+     */
+    private void scanAgent( String agName ) {
+        Agent ag = RunLocalMAS.getRunner().getAg( agName ).getTS().getAg();
+        if ( incrementalUpdates && !watchers.containsKey( agName ) ) {
+            AgentWatcher watcher = new AgentWatcher( agName, ag );
+            watcher.install();
+            watchers.put( agName, watcher );
         }
+        BeliefBase bb = ag.getBB().clone();
+        PlanLibrary pl = ag.getPL().clone();
+        embSpace.update( agName, bb, pl );
     }
 
 
@@ -277,6 +523,13 @@ public class Interpreter extends AgArch {
         getTS().getLogger().log( Level.FINE, msg );
     }
 
+    /** Prints FINE on the agent log, building the message only if FINE is enabled
+     * @param msg builds what to print
+     */
+    protected void logFine( Supplier<String> msg ) {
+        getTS().getLogger().log( Level.FINE, msg );
+    }
+
     protected void logFiner( String msg ) {
         getTS().getLogger().log( Level.FINER, msg );
     }
@@ -0,0 +1,454 @@
+package chatbdi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.json.JSONArray;
+
+import jason.runtime.Settings;
+
+/**
+ * An in-process stand-in for the Ollama server, used to test and load the interpreter without a GPU or a network.
+ * It answers the endpoints used by the Ollama class:
+ * <ul>
+ * <li> /api/embed: deterministic embeddings, the sum of a pseudo-random vector for each word of the input
+ * (so inputs sharing words are near in the space) </li>
+ * <li> /api/generate: a JSON document conforming to the "format" schema, or a short text; streamed if requested </li>
+ * <li> /api/create: always successful, the model is remembered </li>
+ * <li> /api/show: the system prompt, parameters and base model of a created model, 404 for the others </li>
+ * </ul>
+ * Every answer can be delayed by a fixed latency plus a random jitter, and a fraction of the requests can fail.
+ * The mock ships with the interpreter because the ollama_mock setting runs a whole mas on it; it is started only
+ * when that setting is true, and it listens on localhost only.
+ * @author Andrea Gatti
+ */
+public class MockOllama {
+
+    /** The length of the queue of incoming connections: load tests open many at once */
+    private static final int BACKLOG = 1024;
+
+    /** The mock shared by the interpreters of this JVM */
+    private static MockOllama shared;
+
+    /** The HTTP server */
+    private final HttpServer server;
+    /** The threads serving the requests */
+    private final ExecutorService executor;
+    /** The size of the embedding vectors */
+    private final int dim;
+    /** The seed of the embeddings */
+    private final long seed;
+
+    /** The latency added to every answer */
+    private volatile Duration latency = Duration.ZERO;
+    /** The maximum random delay added to the latency */
+    private volatile Duration jitter = Duration.ZERO;
+    /** The fraction of the requests that fail */
+    private volatile double errorRate = 0.0;
+    /** The status code of the failed requests */
+    private volatile int errorStatus = 500;
+
+    /** The number of requests received for each endpoint */
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    /** The models created, with the answer of the show endpoint */
+    private final Map<String, JSONObject> models = new ConcurrentHashMap<>();
+    /** The number of failures injected */
+    private final AtomicLong errors = new AtomicLong( 0 );
+
+    /**
+     * Build a new mock server, not yet started
+     * @param port the port to listen on (0 chooses a free one)
+     * @param dim the size of the embedding vectors
+     * @param seed the seed of the embeddings
+     * @throws IOException if the port cannot be bound
+     */
+    public MockOllama( int port, int dim, long seed ) throws IOException {
+        this.dim = dim;
+        this.seed = seed;
+        this.server = HttpServer.create( new InetSocketAddress( "localhost", port ), BACKLOG );
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor( executor );
+        server.createContext( "/", this::handle );
+    }
+
+    /**
+     * Get the mock shared by all the interpreters of this JVM, starting it the first time.
+     * It is configured by the settings of the first interpreter:
+     * <ul>
+     * <li> mock_emb_dim: the size of the embedding vectors (default 384) </li>
+     * <li> mock_latency: the latency of every answer in milliseconds (default 0) </li>
+     * <li> mock_jitter: the maximum random delay added to the latency in milliseconds (default 0) </li>
+     * <li> mock_error_rate: the fraction of the requests that fail, between 0 and 1 (default 0) </li>
+     * </ul>
+     * @param stts the agent settings
+     * @return the running mock
+     * @throws IOException if the server cannot be started
+     */
+    public static synchronized MockOllama getShared( Settings stts ) throws IOException {
+        if ( shared != null )
+            return shared;
+        int dim = 384;
+        String sttsDim = stts.getUserParameter( "mock_emb_dim" );
+        if ( sttsDim != null )
+            dim = Integer.parseInt( sttsDim );
+        MockOllama mock = new MockOllama( 0, dim, 42 );
+        String sttsLatency = stts.getUserParameter( "mock_latency" );
+        String sttsJitter = stts.getUserParameter( "mock_jitter" );
+        mock.setLatency( Duration.ofMillis( sttsLatency == null ? 0 : Long.parseLong( sttsLatency ) ),
+                         Duration.ofMillis( sttsJitter == null ? 0 : Long.parseLong( sttsJitter ) ) );
+        String sttsErrorRate = stts.getUserParameter( "mock_error_rate" );
+        if ( sttsErrorRate != null )
+            mock.setErrorRate( Double.parseDouble( sttsErrorRate ) );
+        mock.start();
+        shared = mock;
+        return shared;
+    }
+
+    /** Starts answering the requests */
+    public void start() {
+        server.start();
+    }
+
+    /** Stops the server */
+    public void stop() {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the base url of the API, to use as ollama_url
+     * @return the url, ending with /api/
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/api/";
+    }
+
+    /**
+     * Sets the delay of every answer
+     * @param latency the fixed delay
+     * @param jitter the maximum random delay added to latency
+     */
+    public void setLatency( Duration latency, Duration jitter ) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Sets the fraction of the requests that fail
+     * @param errorRate a value between 0 (never) and 1 (always)
+     */
+    public void setErrorRate( double errorRate ) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the status code of the failed requests
+     * @param errorStatus the HTTP status code
+     */
+    public void setErrorStatus( int errorStatus ) {
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * Get the number of requests received by an endpoint
+     * @param endpoint the endpoint name (embed, generate, create)
+     * @return the number of requests, failed ones included
+     */
+    public long getRequests( String endpoint ) {
+        AtomicLong count = requests.get( endpoint );
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Get the number of failures injected
+     * @return the number of failed requests
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Serves a request
+     * @param exchange the HTTP exchange
+     * @throws IOException if the answer cannot be sent
+     */
+    private void handle( HttpExchange exchange ) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            // The root answers the is_online check
+            if ( path.equals( "/" ) ) {
+                send( exchange, 200, "Ollama is running" );
+                return;
+            }
+            String endpoint = path.replaceFirst( "^/api/", "" );
+            requests.computeIfAbsent( endpoint, e -> new AtomicLong() ).incrementAndGet();
+            JSONObject req = new JSONObject( new String( exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8 ) );
+
+            delay();
+            if ( errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate ) {
+                errors.incrementAndGet();
+                send( exchange, errorStatus, new JSONObject().put( "error", "injected failure" ).toString() );
+                return;
+            }
+
+            switch ( endpoint ) {
+                case "embed" -> send( exchange, 200, embedAnswer( req ).toString() );
+                case "generate" -> {
+                    if ( req.optBoolean( "stream", false ) )
+                        stream( exchange, req );
+                    else
+                        send( exchange, 200, generateAnswer( req ).toString() );
+                }
+                case "create" -> {
+                    models.put( req.getString( "model" ), showAnswer( req ) );
+                    send( exchange, 200, new JSONObject().put( "status", "success" ).toString() );
+                }
+                case "show" -> {
+                    JSONObject model = models.get( req.getString( "model" ) );
+                    if ( model == null )
+                        send( exchange, 404, new JSONObject().put( "error", "model '" + req.getString( "model" ) + "' not found" ).toString() );
+                    else
+                        send( exchange, 200, model.toString() );
+                }
+                default -> send( exchange, 404, new JSONObject().put( "error", "unknown endpoint " + endpoint ).toString() );
+            }
+        } catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+        } catch ( RuntimeException re ) {
+            // Malformed request
+            send( exchange, 400, new JSONObject().put( "error", String.valueOf( re.getMessage() ) ).toString() );
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Builds the answer of the show endpoint for a created model, as Ollama describes it
+     * @param create the create request
+     * @return the answer
+     */
+    private static JSONObject showAnswer( JSONObject create ) {
+        StringBuilder params = new StringBuilder();
+        JSONObject parameters = create.optJSONObject( "parameters", new JSONObject() );
+        for ( String name : parameters.keySet() )
+            params.append( String.format( "%-30s %s%n", name, parameters.get( name ) ) );
+        String from = create.optString( "from", "" );
+        if ( !from.contains( ":" ) )
+            from += ":latest";
+        return new JSONObject()
+            .put( "system", create.optString( "system", "" ) )
+            .put( "parameters", params.toString() )
+            .put( "details", new JSONObject().put( "parent_model", from ) );
+    }
+
+    /**
+     * Waits the configured latency
+     * @throws InterruptedException if the server is stopped while waiting
+     */
+    private void delay() throws InterruptedException {
+        long ms = latency.toMillis();
+        long jitterMs = jitter.toMillis();
+        if ( jitterMs > 0 )
+            ms += ThreadLocalRandom.current().nextLong( jitterMs + 1 );
+        if ( ms > 0 )
+            Thread.sleep( ms );
+    }
+
+    /**
+     * Builds the answer of the embed endpoint
+     * @param req the request
+     * @return the answer with one embedding for each input
+     */
+    private JSONObject embedAnswer( JSONObject req ) {
+        JSONArray embeddings = new JSONArray();
+        Object input = req.get( "input" );
+        if ( input instanceof JSONArray inputs ) {
+            for ( int i = 0; i < inputs.length(); i++ )
+                embeddings.put( new JSONArray( embed( inputs.getString( i ) ) ) );
+        } else {
+            embeddings.put( new JSONArray( embed( input.toString() ) ) );
+        }
+        return new JSONObject().put( "model", req.optString( "model" ) ).put( "embeddings", embeddings );
+    }
+
+    /**
+     * Computes the deterministic embedding of a text: the normalized sum of a pseudo-random vector for each word
+     * @param text the text to embed
+     * @return the embedding vector
+     */
+    float[] embed( String text ) {
+        float[] emb = new float[ dim ];
+        String[] words = text.toLowerCase().split( "[^\\p{L}\\p{N}]+" );
+        boolean empty = true;
+        for ( String word : words ) {
+            if ( word.isEmpty() )
+                continue;
+            addWord( emb, word );
+            empty = false;
+        }
+        if ( empty )
+            addWord( emb, text );
+        double norm = Tools.norm( emb );
+        for ( int i = 0; i < dim; i++ )
+            emb[ i ] = (float) ( emb[ i ] / norm );
+        return emb;
+    }
+
+    /**
+     * Adds to a vector the pseudo-random vector of a word
+     * @param emb the vector to update
+     * @param word the word
+     */
+    private void addWord( float[] emb, String word ) {
+        Random rnd = new Random( seed * 31 + word.hashCode() );
+        for ( int i = 0; i < dim; i++ )
+            emb[ i ] += (float) rnd.nextGaussian();
+    }
+
+    /**
+     * Builds the answer of the generate endpoint
+     * @param req the request
+     * @return the answer: a document conforming to the format schema, or a short text if there is no format
+     */
+    private JSONObject generateAnswer( JSONObject req ) {
+        String prompt = req.optString( "prompt" );
+        String response;
+        if ( req.has( "format" ) && req.get( "format" ) instanceof JSONObject format )
+            response = String.valueOf( fromSchema( format, prompt ) );
+        else
+            response = text( prompt );
+        return new JSONObject()
+            .put( "model", req.optString( "model" ) )
+            .put( "response", response )
+            .put( "done", true );
+    }
+
+    /**
+     * Streams the answer of the generate endpoint, one word for each line
+     * @param exchange the HTTP exchange
+     * @param req the request
+     * @throws IOException if the answer cannot be sent
+     */
+    private void stream( HttpExchange exchange, JSONObject req ) throws IOException {
+        String response = generateAnswer( req ).getString( "response" );
+        exchange.getResponseHeaders().set( "Content-Type", "application/x-ndjson" );
+        exchange.sendResponseHeaders( 200, 0 );
+        try ( OutputStream out = exchange.getResponseBody() ) {
+            String[] tokens = response.split( "(?<= )" );
+            for ( String token : tokens ) {
+                JSONObject chunk = new JSONObject().put( "model", req.optString( "model" ) ).put( "response", token ).put( "done", false );
+                out.write( ( chunk + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+                out.flush();
+            }
+            JSONObject last = new JSONObject().put( "model", req.optString( "model" ) ).put( "response", "" ).put( "done", true );
+            out.write( ( last + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    /**
+     * Generates a value conforming to a JSON schema.
+     * The supported keywords are the ones produced by the interpreter: const, enum, anyOf, type, properties and pattern.
+     * The choices depend only on the prompt, so the same request always gets the same answer.
+     * @param schema the schema
+     * @param prompt the prompt, used to choose among the alternatives
+     * @return the value (a JSONObject, JSONArray, String, Number or JSONObject.NULL)
+     */
+    private Object fromSchema( JSONObject schema, String prompt ) {
+        if ( schema.has( "const" ) )
+            return schema.get( "const" );
+        if ( schema.has( "enum" ) ) {
+            JSONArray values = schema.getJSONArray( "enum" );
+            return values.get( Math.floorMod( prompt.hashCode(), values.length() ) );
+        }
+        if ( schema.has( "anyOf" ) ) {
+            // Prefer a non null alternative: null is a placeholder for the unnamed variable
+            JSONArray options = schema.getJSONArray( "anyOf" );
+            for ( int i = 0; i < options.length(); i++ )
+                if ( !"null".equals( options.getJSONObject( i ).optString( "type" ) ) )
+                    return fromSchema( options.getJSONObject( i ), prompt );
+            if ( options.length() > 0 )
+                return fromSchema( options.getJSONObject( 0 ), prompt );
+            return JSONObject.NULL;
+        }
+        switch ( schema.optString( "type", "string" ) ) {
+            case "object": {
+                JSONObject obj = new JSONObject();
+                JSONObject properties = schema.optJSONObject( "properties" );
+                if ( properties != null )
+                    for ( String key : properties.keySet() )
+                        obj.put( key, fromSchema( properties.getJSONObject( key ), prompt ) );
+                return obj;
+            }
+            case "array":
+                return new JSONArray();
+            case "number":
+            case "integer":
+                return Math.floorMod( prompt.hashCode(), 100 );
+            case "boolean":
+                return prompt.hashCode() % 2 == 0;
+            case "null":
+                return JSONObject.NULL;
+            default:
+                // Atoms and variables have a pattern starting with the case of the first letter
+                if ( schema.optString( "pattern" ).startsWith( "^[A-Z]" ) )
+                    return "X";
+                return "mock";
+        }
+    }
+
+    /**
+     * Generates a short free text for a prompt
+     * @param prompt the prompt
+     * @return the text
+     */
+    private static String text( String prompt ) {
+        String[] lines = prompt.strip().split( "\n" );
+        String last = lines[ lines.length - 1 ].strip();
+        if ( last.length() > 80 )
+            last = last.substring( 0, 80 );
+        return "Mock answer to: " + last;
+    }
+
+    /**
+     * Sends a complete answer
+     * @param exchange the HTTP exchange
+     * @param status the status code
+     * @param body the body
+     * @throws IOException if the answer cannot be sent
+     */
+    private static void send( HttpExchange exchange, int status, String body ) throws IOException {
+        byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", "application/json" );
+        exchange.sendResponseHeaders( status, bytes.length );
+        try ( OutputStream out = exchange.getResponseBody() ) {
+            out.write( bytes );
+        }
+    }
+
+    /**
+     * Starts a standalone mock server
+     * @param args the port (default 11434) and the size of the embeddings (default 384)
+     * @throws IOException if the server cannot be started
+     */
+    public static void main( String[] args ) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt( args[0] ) : 11434;
+        int dim = args.length > 1 ? Integer.parseInt( args[1] ) : 384;
+        MockOllama mock = new MockOllama( port, dim, 42 );
+        mock.start();
+        System.out.println( "Mock Ollama listening at " + mock.getUrl() );
+    }
+}
@@ -0,0 +1,33 @@
+package chatbdi;
+
+import java.util.function.IntPredicate;
+
+/**
+ * A NearestIndex answers nearest neighbour queries over the rows of a VectorStore.
+ * The index is updated incrementally: every row added to the store must be added to the index.
+ * @author Andrea Gatti
+ */
+public interface NearestIndex {
+
+    /**
+     * Add a row of the store to the index
+     * @param row the row just added to the store
+     */
+    public void add( int row );
+
+    /**
+     * Finds the rows nearest to a query vector
+     * @param q the query vector
+     * @param qNorm the precomputed norm of the query
+     * @param k the maximum number of rows to return
+     * @param filter only the rows accepted by the filter can be returned (null accepts all the rows)
+     * @return the rows found, the nearest first
+     */
+    public int[] search( float[] q, double qNorm, int k, IntPredicate filter );
+
+    /**
+     * Get the store indexed
+     * @return the vector store
+     */
+    public VectorStore getStore();
+}
@@ -0,0 +1,46 @@
+package chatbdi;
+
+import jason.asSyntax.Literal;
+
+/**
+ * A literal of the embedding space found by a nearest neighbour search, with its distance from the query
+ * @author Andrea Gatti
+ */
+public class Neighbour {
+
+    /** The literal found */
+    private final Literal literal;
+    /** The cosine distance between the literal and the query */
+    private final double distance;
+
+    /**
+     * Build a new search result
+     * @param literal the literal found
+     * @param distance the cosine distance from the query
+     */
+    public Neighbour( Literal literal, double distance ) {
+        this.literal = literal;
+        this.distance = distance;
+    }
+
+    /**
+     * Get the literal found
+     * @return the literal
+     */
+    public Literal getLiteral() {
+        return literal;
+    }
+
+    /**
+     * Get the distance from the query
+     * @return the cosine distance in [0.0, 2.0]
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return literal + " (" + distance + ")";
+    }
+}
@@ -6,17 +6,31 @@ import java.net.http.HttpResponse;
 import java.net.ConnectException;
 import java.net.URI;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.time.Duration;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONException;
 
 import jason.asSyntax.*;
 import jason.asSemantics.Message;
@@ -38,6 +52,8 @@ public class Ollama {
     private String URL = "http://localhost:11434/api/";
 	/** The embedding model to use */
     protected String EMB_MODEL;
+	/** The maximum number of inputs sent in a single embedding request */
+    protected int EMB_BATCH_SIZE = 64;
 	/** The generation model to use */
     protected String GEN_MODEL;
 	/** The name that will be assigned to the model that translates KQML to NL */
@@ -51,33 +67,74 @@ public class Ollama {
     private float TEMPERATURE = 0.0f;
 	/** The seed for the generation models (to be reproducible) */
     private int SEED = 42;
+	/** The maximum time to wait for an answer of the Ollama server */
+    private Duration TIMEOUT = Duration.ofSeconds( 120 );
 
 	/** The Agent name (for log printing) */
 	private String agName;
+	/** The logger of the agent: the debug messages are built only if their level is enabled */
+	private final Logger logger;
 
     private String NL2LOG_PROMPT;
     private String LOG2NL_PROMPT;
     private String NL2LOG_MODELFILE;
     private String LOG2NL_MODELFILE;
     private String CLASS_MODELFILE ;
+	/** Create the generation models at startup even if they are up to date */
+	private boolean RECREATE_MODELS = false;
+	/** Compile again the prompt templates when their files change */
+	private boolean PROMPT_RELOAD = false;
+	/** The placeholders of the NL2LOG_PROMPT template, in the order of the values */
+	private static final String[] NL2LOG_SLOTS = { "SENTENCE", "NEAREST_JSON", "ILF", "EXAMPLES" };
+	/** The placeholders of the LOG2NL_PROMPT template, in the order of the values */
+	private static final String[] LOG2NL_SLOTS = { "SENDER", "ILFORCE", "CONTENT" };
+	/** The maximum length of a streamed translation, also shown by the chat: the rest of the answer is not read */
+	static final int MAX_STREAMED_LENGTH = 16384;
+	/** The compiled NL2LOG_PROMPT, null until it is read */
+	private volatile PromptTemplate nl2logTemplate;
+	/** The compiled LOG2NL_PROMPT, null until it is read */
+	private volatile PromptTemplate log2nlTemplate;
 
 	/**
 	 * List of the supported Illocutionary Forces
 	 */
 	private final String[] SUPPORTED_ILF;
+	/**
+	 * The output schema of the classification, built once from the supported Illocutionary Forces
+	 */
+	private final JSONObject ILF_SCHEMA;
+	/**
+	 * The classifications of the last messages, null if disabled
+	 */
+	private IlfCache ilfCache;
+	/**
+	 * The classifier of the Illocutionary Force from the message embedding, null if disabled
+	 */
+	private IlfClassifier ilfClassifier;
 	/**
 	 * The HTTP client for the requests
 	 */
 	private final HttpClient client = HttpClient.newHttpClient();
 
 	/**
-	 * Creates a new Ollama object
+	 * Creates a new Ollama object logging on its own logger
 	 * @param supportedIlfs the list of supported Illocuctionary Forces
 	 * @throws ConnectException if the ollama server is not available
 	 */
 	public Ollama( String[] supportedIlfs, String agName, Settings stts ) throws ConnectException {
+		this( supportedIlfs, agName, stts, Logger.getLogger( Ollama.class.getName() + "." + agName ) );
+	}
+
+	/**
+	 * Creates a new Ollama object
+	 * @param supportedIlfs the list of supported Illocuctionary Forces
+	 * @param logger the logger of the agent
+	 * @throws ConnectException if the ollama server is not available
+	 */
+	public Ollama( String[] supportedIlfs, String agName, Settings stts, Logger logger ) throws ConnectException {
 
 		this.agName = agName;
+		this.logger = logger;
 		NL2LOG_PROMPT = stts.getUserParameter("nl2log_prompt");
 		LOG2NL_PROMPT = stts.getUserParameter("log2nl_prompt");
 		NL2LOG_MODELFILE = stts.getUserParameter("nl2log_model");
@@ -91,24 +148,114 @@ public class Ollama {
 		String sttsSeed = stts.getUserParameter( "seed" );
 		if ( sttsSeed != null )
 			SEED = Integer.parseInt(sttsSeed);
+		String sttsBatchSize = stts.getUserParameter( "emb_batch_size" );
+		if ( sttsBatchSize != null )
+			EMB_BATCH_SIZE = Integer.parseInt( sttsBatchSize );
+		String sttsTimeout = stts.getUserParameter( "ollama_timeout" );
+		if ( sttsTimeout != null )
+			TIMEOUT = Duration.ofSeconds( Long.parseLong( sttsTimeout ) );
+		String sttsRecreate = stts.getUserParameter( "recreate_models" );
+		if ( sttsRecreate != null )
+			RECREATE_MODELS = Boolean.parseBoolean( sttsRecreate );
+		String sttsReload = stts.getUserParameter( "prompt_reload" );
+		if ( sttsReload != null )
+			PROMPT_RELOAD = Boolean.parseBoolean( sttsReload );
 		String sttsUrl = stts.getUserParameter( "ollama_url" );
 		if ( sttsUrl != null )
 			URL = sttsUrl;
- 
+		// Use the in-process mock server instead of Ollama
+		String sttsMock = stts.getUserParameter( "ollama_mock" );
+		if ( sttsMock != null && Boolean.parseBoolean( sttsMock ) ) {
+			try {
+				URL = MockOllama.getShared( stts ).getUrl();
+			} catch ( IOException ioe ) {
+				throw new ConnectException( "The mock Ollama server cannot be started: " + ioe.getMessage() );
+			}
+		}
+
 		// Store the supported Illocutionary Forces
 		SUPPORTED_ILF = new String[ supportedIlfs.length ];
 		for ( int i = 0; i < supportedIlfs.length; i++ )
 			SUPPORTED_ILF[i] = supportedIlfs[i];
+		ILF_SCHEMA = ilfSchema();
+		// Cache the classifications of the last messages
+		int ilfCacheSize = 1024;
+		String sttsIlfCacheSize = stts.getUserParameter( "ilf_cache_size" );
+		if ( sttsIlfCacheSize != null )
+			ilfCacheSize = Integer.parseInt( sttsIlfCacheSize );
+		double ilfCacheSimilarity = Double.NaN;
+		String sttsIlfCacheSimilarity = stts.getUserParameter( "ilf_cache_similarity" );
+		if ( sttsIlfCacheSimilarity != null )
+			ilfCacheSimilarity = Double.parseDouble( sttsIlfCacheSimilarity );
+		if ( ilfCacheSize > 0 )
+			ilfCache = new IlfCache( ilfCacheSize, ilfCacheSimilarity );
 
 		// Check if the Ollama server is online at the given address
 		if ( !is_online() ) {
 			throw new ConnectException( "The Ollama Server is offline or the address is not correct." );
 		}
-		// Initialize the generation models with prompts
-		System.out.println( "Initializing generation models" );
-		create( GEN_MODEL, NL2LOG_MODEL, TEMPERATURE, NL2LOG_MODELFILE, SEED );
-		create( GEN_MODEL, LOG2NL_MODEL, TEMPERATURE, LOG2NL_MODELFILE, SEED );
-		create( GEN_MODEL, CLASS_MODEL, TEMPERATURE, CLASS_MODELFILE, SEED );
+		// Initialize the generation models with prompts: the models do not depend on each other
+		logger.info( "Initializing generation models" );
+		CompletableFuture.allOf(
+			ensureModel( GEN_MODEL, NL2LOG_MODEL, TEMPERATURE, NL2LOG_MODELFILE, SEED ),
+			ensureModel( GEN_MODEL, LOG2NL_MODEL, TEMPERATURE, LOG2NL_MODELFILE, SEED ),
+			ensureModel( GEN_MODEL, CLASS_MODEL, TEMPERATURE, CLASS_MODELFILE, SEED )
+		).join();
+		// Read the prompts once: a missing file is reported again at the first translation that needs it
+		try {
+			nl2logTemplate();
+			log2nlTemplate();
+		} catch ( IOException ioe ) {
+			logger.severe( "Cannot read the prompt: " + ioe.getMessage() );
+		}
+		// Train the classifier of the Illocutionary Force on the labelled examples
+		String sttsIlfExamples = stts.getUserParameter( "ilf_examples" );
+		if ( sttsIlfExamples != null ) {
+			double minSimilarity = 0.3;
+			String sttsMinSimilarity = stts.getUserParameter( "ilf_min_similarity" );
+			if ( sttsMinSimilarity != null )
+				minSimilarity = Double.parseDouble( sttsMinSimilarity );
+			double margin = 0.05;
+			String sttsMargin = stts.getUserParameter( "ilf_margin" );
+			if ( sttsMargin != null )
+				margin = Double.parseDouble( sttsMargin );
+			try {
+				ilfClassifier = IlfClassifier.train( Path.of( sttsIlfExamples ), this, SUPPORTED_ILF, minSimilarity, margin, logger );
+				logger.info( "Illocutionary Force classifier trained: " + ilfClassifier );
+			} catch ( IOException | IllegalArgumentException e ) {
+				logger.severe( "Cannot train the Illocutionary Force classifier: " + e.getMessage() );
+			}
+		}
+	}
+
+	/**
+	 * Get the compiled NL2LOG_PROMPT, reading it the first time
+	 * @return the template
+	 * @throws IOException if fails reading the NL2LOG_PROMPT file
+	 */
+	private PromptTemplate nl2logTemplate() throws IOException {
+		if ( nl2logTemplate == null )
+			nl2logTemplate = PromptTemplate.of( NL2LOG_PROMPT, PROMPT_RELOAD, NL2LOG_SLOTS );
+		return nl2logTemplate;
+	}
+
+	/**
+	 * Get the compiled LOG2NL_PROMPT, reading it the first time
+	 * @return the template
+	 * @throws IOException if fails reading the LOG2NL_PROMPT file
+	 */
+	private PromptTemplate log2nlTemplate() throws IOException {
+		if ( log2nlTemplate == null )
+			log2nlTemplate = PromptTemplate.of( LOG2NL_PROMPT, PROMPT_RELOAD, LOG2NL_SLOTS );
+		return log2nlTemplate;
+	}
+
+	/**
+	 * Get the logger of the agent
+	 * @return the logger
+	 */
+	protected Logger getLogger() {
+		return logger;
 	}
 
 	/**
@@ -146,39 +293,56 @@ public class Ollama {
 	/**
 	 * Generates the embedding of a string
 	 * @param str the string to embed
-	 * @return a list of double (the embedding vector). The size depends on the model used.
+	 * @return the embedding vector. The size depends on the model used.
 	 */
-	public List<Double> embed( String str ) {
-		// Build the JSON object
-		JSONObject json = new JSONObject();
-		json.put( "model", EMB_MODEL );
-		json.put( "input", str );
-		json.put( "stream", false );
+	public float[] embed( String str ) {
+		return embedAll( List.of( str ) ).get( 0 );
+	}
 
-		// Build the request
-		HttpRequest req = HttpRequest.newBuilder()
-			.uri( URI.create( URL + "embed" ) )
-			.header( "Content-Type", "application/json" )
-			.POST( HttpRequest.BodyPublishers.ofString( json.toString() ) )
-			.build();
+	/**
+	 * Generates the embeddings of many strings, sending them in batches of EMB_BATCH_SIZE inputs
+	 * @param strs the strings to embed
+	 * @return the embedding vectors in the same order of strs (null for the strings of a failed batch)
+	 */
+	public List<float[]> embedAll( List<String> strs ) {
+		List<float[]> embs = new ArrayList<>( strs.size() );
+		for ( int from = 0; from < strs.size(); from += EMB_BATCH_SIZE ) {
+			List<String> batch = strs.subList( from, Math.min( from + EMB_BATCH_SIZE, strs.size() ) );
+			List<float[]> batchEmbs = embedBatch( batch );
+			if ( batchEmbs == null ) {
+				for ( int i = 0; i < batch.size(); i++ )
+					embs.add( null );
+			} else {
+				embs.addAll( batchEmbs );
+			}
+		}
+		return embs;
+	}
 
+	/**
+	 * Calls the EMBED API once for a batch of strings
+	 * @param batch the strings to embed
+	 * @return the embedding vectors in the same order of batch, null if the request fails
+	 */
+	private List<float[]> embedBatch( List<String> batch ) {
 		try {
 			// Send the message
-			HttpResponse<String> res = client.send( req, HttpResponse.BodyHandlers.ofString() );
-			// Load the content inside a JSONObject
-			JSONObject emb_json = new JSONObject( res.body() );
-			// Get the embedding array
-			JSONArray vec = emb_json.getJSONArray( "embeddings" ).getJSONArray(0);
-			// Copy the JSONArray into a Java List
-			List<Double> list = new ArrayList<>();
-			for( int i = 0; i < vec.length(); i++ ) {
-				list.add( vec.getDouble( i ) );
+			HttpResponse<String> res = client.send( request( "embed", embedJson( batch ), null ), HttpResponse.BodyHandlers.ofString() );
+			if ( res.statusCode() != 200 ) {
+				logger.warning( "embed answered " + res.statusCode() + " to a batch of " + batch.size() + ": " + res.body() );
+				return null;
 			}
-			return list;
-		} catch ( IOException e ) {
-			e.printStackTrace();
+			List<float[]> embs = parseEmbeddings( res.body() );
+			if ( embs.size() != batch.size() ) {
+				logger.warning( "embed answered " + embs.size() + " embeddings to a batch of " + batch.size() );
+				return null;
+			}
+			return embs;
+		} catch ( IOException | JSONException e ) {
+			logger.log( Level.WARNING, "Cannot embed a batch of " + batch.size(), e );
 		} catch ( InterruptedException e ) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			logger.log( Level.WARNING, "Embedding interrupted", e );
 		}
 		return null;
 	}
@@ -186,9 +350,9 @@ public class Ollama {
 	/**
 	 * Computes the embedding of a Literal term
 	 * @param term the Literal to embed
-	 * @return a list of double (the embedding vector). The size depends on the model used.
+	 * @return the embedding vector. The size depends on the model used.
 	 */
-	public List<Double> embed( Literal term ) {
+	public float[] embed( Literal term ) {
 		return embed( preprocess( term ) );
 	}
 
@@ -199,22 +363,14 @@ public class Ollama {
 	 * @return the body of the answer
 	 */
 	private String generate( String model, String str ) {
-		JSONObject json = new JSONObject();
-		json.put( "model", model );
-		json.put( "prompt", str );
-		json.put( "stream", false );
-
-		HttpRequest req = HttpRequest.newBuilder()
-			.uri( URI.create( URL + "generate" ) )
-			.header( "Content-Type", "application/json" )
-			.POST( HttpRequest.BodyPublishers.ofString( json.toString() ) )
-			.build();
-
 		try {
-			HttpResponse<String> res = client.send( req, HttpResponse.BodyHandlers.ofString() );
+			HttpResponse<String> res = client.send( request( "generate", generateJson( model, str, null ), null ), HttpResponse.BodyHandlers.ofString() );
 			return res.body();
-		} catch( Exception e ) {
-			e.printStackTrace();
+		} catch ( IOException e ) {
+			logger.log( Level.WARNING, "Cannot generate with " + model, e );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			logger.log( Level.WARNING, "Generation with " + model + " interrupted", e );
 		}
 		return null;
 	}
@@ -225,27 +381,18 @@ public class Ollama {
 	 * @return the Literal correspondent to the Illocutionary Force
 	 */
 	public Literal classify( String msg ) {
-		// Build a JSON Schema with the available Illocutionary Forces
-        JSONObject ilf = new JSONObject();
-        ilf.put( "type", "string" );
-        ilf.put( "enum", SUPPORTED_ILF );
-        JSONObject properties = new JSONObject();
-        properties.put( "Illocutionary Force", ilf );
-        JSONObject json = new JSONObject();
-        json.put( "type", "object" );
-        json.put( "properties", properties );
-        json.put( "required", new JSONArray().put( "Illocutionary Force" ) );
-
-		// Generate the answer and load it inside a JSON Object
-        JSONObject ans = new JSONObject( generate( CLASS_MODEL, msg, json ) );
-		// Postprocess
-        String ilfObjStr = ans.getString( "response" )
-            .replaceAll( "```json\\s*", "" )
-            .replaceAll( "```\\s*$", "" )
-            .trim();
-        JSONObject ilfObj = new JSONObject( ilfObjStr );
-		// Return the literal
-        return createLiteral( ilfObj.getString( "Illocutionary Force" ).trim() );
+		String key = ilfCache == null ? null : IlfCache.normalize( msg );
+		if ( key != null ) {
+			Literal cached = ilfCache.get( key );
+			if ( cached != null )
+				return cached;
+			ilfCache.miss();
+		}
+		// Generate the answer and parse it
+		Literal ilf = parseIlf( generate( CLASS_MODEL, msg, ILF_SCHEMA ) );
+		if ( key != null )
+			ilfCache.put( key, ilf, null );
+		return ilf;
 	}
 
 	/**
@@ -261,48 +408,10 @@ public class Ollama {
 	 * @throws ParseException if the provided answer is not a valid Jason term
 	 */
 	public Literal generate( String msg, Literal nearest, Literal ilf, List<Literal> examples ) throws IOException, ParseException {
-
-        List<JSONObject> jsonExamples = new ArrayList<>();
-		List<Map<String, Term>> mapExamples = new ArrayList<>();
-		System.out.println("[LOG] nearest: " + nearest );
-		// Translate the term in JSON
-        Map<String, Term> nearestJson = termToMap( nearest );
-		System.out.println("[LOG] nearest json: " + nearestJson );
-		// Translate all the examples
-        for ( Literal example : examples ) {
-			try {
-				Map<String, Term> mapExample = termToMap( example );
-				mapExamples.add( mapExample );
-				jsonExamples.add( mapToJson( mapExample ) );
-			} catch ( NoValueException nve ) {
-				nve.printStackTrace();
-			}
-		}
-		// Generate a schema with types provided in the examples for each arg
-        JSONObject schema = genJSONSchema( mapExamples );
-		System.out.println( "[LOG] Sentence: " + msg + ", nearest: " + nearestJson + ", ilf: " + ilf + ", examples: " + jsonExamples );
-		// Read the prompt and replace needed placeholders
-        String prompt = Files.readString( Path.of( NL2LOG_PROMPT ) )
-            .replace( "SENTENCE", msg )
-            .replace( "NEAREST_JSON", nearestJson.toString() )
-            .replace( "ILF", ilf.toString() )
-            .replace( "EXAMPLES", jsonExamples.toString() );
-		// // List variable names: they may have meaningful names
-        // // List<Set<Term>> varNames = getVarNames( examples );
-        // // for ( int i = 0; i < varNames.size(); i++ )
-        // //     if ( !varNames.get( i ).isEmpty() )
-        // //         prompt += " - arg" + i + " should contain " + varNames.get( i ) +
-        // //         "; if this piece of information is in the sentence place it here, otherwise place underscore or null";
-        
+		JSONObject json = nl2logJson( msg, nearest, ilf, examples );
 		// Generate the new term
-        JSONObject answer = new JSONObject( generate( GEN_MODEL, prompt, schema ) );
-        JSONObject response = new JSONObject( answer.getString( "response" ) );
-		try {
-			Literal responseTerm = jsonToTerm( response );
-			return responseTerm;
-		} catch ( ParseException pe ) {
-			throw new ParseException( "LLM error! Generated: " + response + ". It is not a valid Jason term." );
-		}
+		String answer = generate( GEN_MODEL, json.getString( "prompt" ), json.getJSONObject( "format" ) );
+		return parseTerm( answer );
 	}
 
 	/**
@@ -312,12 +421,65 @@ public class Ollama {
 	 * @throws IOException if fails to open LOG2NL_PROMPT
 	 */
 	public String generate( Message msg ) throws IOException {
-		String prompt = Files.readString( Path.of( LOG2NL_PROMPT ) )
-			.replace( "SENDER", msg.getSender() )
-			.replace( "ILFORCE", msg.getIlForce() )
-			.replace( "CONTENT", msg.getPropCont().toString() );
-		JSONObject answer = new JSONObject( generate(LOG2NL_MODEL, prompt) );
-		return answer.getString( "response" ).replaceAll( "(?s)<think>.*?</think>", "" );
+		return parseNl( generate( LOG2NL_MODEL, log2nlPrompt( msg ) ) );
+	}
+
+	/**
+	 * This function translates a Jason message in Natural Language streaming the answer.
+	 * The answer is read line by line as Ollama generates it and the thinking sections are dropped as they arrive:
+	 * only the visible text is kept in memory, up to MAX_STREAMED_LENGTH characters: a longer answer is cut, ending
+	 * with "...", and the request is closed so that Ollama stops generating it.
+	 * @param msg the KQML message
+	 * @param onToken called with each piece of visible text, in order
+	 * @return the natural language translation
+	 * @throws IOException if fails to open LOG2NL_PROMPT or if the request fails
+	 */
+	public String generate( Message msg, Consumer<String> onToken ) throws IOException {
+		JSONObject json = generateJson( LOG2NL_MODEL, log2nlPrompt( msg ), null );
+		json.put( "stream", true );
+		HttpResponse<Stream<String>> res;
+		try {
+			res = client.send( request( "generate", json, null ), HttpResponse.BodyHandlers.ofLines() );
+		} catch ( InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+			throw new IOException( "Translation interrupted", ie );
+		}
+		if ( res.statusCode() != 200 ) {
+			try ( Stream<String> lines = res.body() ) {
+				throw new IOException( "generate answered " + res.statusCode() + ": " + String.join( "\n", lines.toList() ) );
+			}
+		}
+		ThinkFilter filter = new ThinkFilter();
+		StringBuilder text = new StringBuilder();
+		// Every line is a JSON object with the next token in the response field
+		try ( Stream<String> lines = res.body() ) {
+			Iterator<String> it = lines.iterator();
+			while ( it.hasNext() && text.length() <= MAX_STREAMED_LENGTH ) {
+				String line = it.next();
+				if ( line.isBlank() )
+					continue;
+				JSONObject chunk = new JSONObject( line );
+				appendStreamed( text, filter.process( chunk.optString( "response", "" ) ), onToken );
+			}
+		}
+		if ( text.length() <= MAX_STREAMED_LENGTH )
+			appendStreamed( text, filter.flush(), onToken );
+		return text.toString();
+	}
+
+	/**
+	 * Appends a piece of a streamed translation, cutting it at MAX_STREAMED_LENGTH characters
+	 * @param text the translation so far
+	 * @param visible the piece to append
+	 * @param onToken called with the piece appended
+	 */
+	private static void appendStreamed( StringBuilder text, String visible, Consumer<String> onToken ) {
+		if ( visible.isEmpty() )
+			return;
+		if ( text.length() + visible.length() > MAX_STREAMED_LENGTH )
+			visible = visible.substring( 0, MAX_STREAMED_LENGTH - text.length() ) + "...";
+		text.append( visible );
+		onToken.accept( visible );
 	}
 
 	/**
@@ -328,25 +490,14 @@ public class Ollama {
 	 * @return the JSON string received (to handle)
 	 */
 	private String generate( String model, String str, JSONObject format ) {
-		JSONObject json = new JSONObject();
-		json.put( "model", model );
-		json.put( "prompt", str );
-		json.put( "format", format );
-		json.put( "stream", false );
-
-		HttpRequest req = HttpRequest.newBuilder()
-			.uri( URI.create( URL + "generate" ) )
-			.header( "Content-Type", "application/json" )
-			.POST( HttpRequest.BodyPublishers.ofString( json.toString() ) )
-			.build();
-
 		try {
-			HttpResponse<String> res = client.send( req, HttpResponse.BodyHandlers.ofString() );
+			HttpResponse<String> res = client.send( request( "generate", generateJson( model, str, format ), null ), HttpResponse.BodyHandlers.ofString() );
 			return res.body();
-		} catch( IOException e ) {
-			e.printStackTrace();
+		} catch ( IOException e ) {
+			logger.log( Level.WARNING, "Cannot generate with " + model, e );
 		} catch ( InterruptedException e ) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			logger.log( Level.WARNING, "Generation with " + model + " interrupted", e );
 		}
 		return null;
 	}
@@ -359,26 +510,13 @@ public class Ollama {
 	 * @param sys_file the path to a system file
 	 */
 	public void create( String from, String model, float t, String sys_file ) {
-		JSONObject params = new JSONObject();
-		params.put( "temperature", t );
-		JSONObject json = new JSONObject();
-		json.put( "from", from );
-		json.put( "model", model );
-		json.put( "stream", false );
-		json.put( "parameters", params );
 		try {
-			json.put( "system", Files.readString( Path.of(sys_file ) ) );
-			HttpRequest request = HttpRequest.newBuilder()
-				.uri( URI.create( URL + "create" ) )
-				.header( "Content-Type", "application/json" )
-				.POST( HttpRequest.BodyPublishers.ofString( json.toString() ) )
-				.build();
-
-			HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
+			HttpResponse<String> httpResponse = client.send( request( "create", createJson( from, model, t, sys_file, null ), null ), HttpResponse.BodyHandlers.ofString() );
 		} catch ( IOException e ) {
-			e.printStackTrace();
+			logger.log( Level.WARNING, "Cannot create the model " + model, e );
 		} catch ( InterruptedException e ) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			logger.log( Level.WARNING, "Creation of the model " + model + " interrupted", e );
 		}
 	}
 
@@ -391,27 +529,549 @@ public class Ollama {
 	 * @param seed the seed for generation
 	 */
 	public void create( String from, String model, float t, String sys_file, int seed ) {
+		try {
+			HttpResponse<String> httpResponse = client.send( request( "create", createJson( from, model, t, sys_file, seed ), null ), HttpResponse.BodyHandlers.ofString() );
+		} catch ( IOException e ) {
+			logger.log( Level.WARNING, "Cannot create the model " + model, e );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			logger.log( Level.WARNING, "Creation of the model " + model + " interrupted", e );
+		}
+	}
+
+	/**
+	 * Creates a prompted model only if Ollama does not have it yet or it was created with other settings.
+	 * The model given by the SHOW API is compared with the requested one through a fingerprint of the base model,
+	 * the temperature, the seed and the system prompt.
+	 * A base model pulled again keeps its name: use recreate_models to rebuild the models on top of it.
+	 * @param from the starting model
+	 * @param model the final model name
+	 * @param t the temperature
+	 * @param sys_file the path to a system file
+	 * @param seed the seed for generation
+	 * @return a future completed when the model is ready; failures are logged, as create does
+	 */
+	private CompletableFuture<Void> ensureModel( String from, String model, float t, String sys_file, int seed ) {
+		String expected;
+		try {
+			expected = fingerprint( from, Float.toString( t ), Integer.toString( seed ), Files.readString( Path.of( sys_file ) ) );
+		} catch ( IOException ioe ) {
+			logger.severe( "Cannot read the system file of " + model + ": " + ioe.getMessage() );
+			return CompletableFuture.completedFuture( null );
+		}
+		CompletableFuture<Boolean> upToDate = RECREATE_MODELS
+			? CompletableFuture.completedFuture( false )
+			: send( null, "show", new JSONObject().put( "model", model ) )
+				.handle( ( body, e ) -> e == null && expected.equals( fingerprint( new JSONObject( body ) ) ) );
+		return upToDate.thenCompose( same -> {
+			if ( same ) {
+				logger.fine( () -> "Model " + model + " is up to date" );
+				return CompletableFuture.<Void>completedFuture( null );
+			}
+			logger.info( "Creating model " + model );
+			return createAsync( from, model, t, sys_file, seed );
+		}).exceptionally( e -> {
+			logger.severe( "Cannot create model " + model + ": " + e.getMessage() );
+			return null;
+		});
+	}
+
+	/**
+	 * Computes the fingerprint of a model described by the SHOW API
+	 * @param show the answer of the SHOW API
+	 * @return the fingerprint, null if the answer lacks the base model
+	 */
+	private static String fingerprint( JSONObject show ) {
+		String from = show.optJSONObject( "details", new JSONObject() ).optString( "parent_model", "" );
+		if ( from.isEmpty() )
+			return null;
+		// The parameters are listed one per line, as "name value"
+		String t = null;
+		String seed = null;
+		for ( String line : show.optString( "parameters", "" ).split( "\n" ) ) {
+			String[] param = line.trim().split( "\\s+", 2 );
+			if ( param.length < 2 )
+				continue;
+			try {
+				if ( param[0].equals( "temperature" ) )
+					t = Float.toString( Float.parseFloat( param[1] ) );
+				else if ( param[0].equals( "seed" ) )
+					seed = Integer.toString( Integer.parseInt( param[1] ) );
+			} catch ( NumberFormatException nfe ) {
+				return null;
+			}
+		}
+		return fingerprint( from, t, seed, show.optString( "system", "" ) );
+	}
+
+	/**
+	 * Computes the fingerprint of a prompted model
+	 * @param from the starting model (the tag defaults to latest, as in Ollama)
+	 * @param t the temperature
+	 * @param seed the seed for generation
+	 * @param system the system prompt
+	 * @return the SHA-256 of the settings, as hex string
+	 */
+	private static String fingerprint( String from, String t, String seed, String system ) {
+		if ( !from.contains( ":" ) )
+			from += ":latest";
+		try {
+			MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+			String settings = String.join( "\n", from, String.valueOf( t ), String.valueOf( seed ), system );
+			return HexFormat.of().formatHex( digest.digest( settings.getBytes( StandardCharsets.UTF_8 ) ) );
+		} catch ( NoSuchAlgorithmException nsae ) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException( nsae );
+		}
+	}
+
+	// ----------------------------------------------------------------------------------------------------
+	// Asynchronous API
+	// Every call returns immediately a CompletableFuture. The id of the chat entry the call belongs to
+	// is sent in the X-Request-Id header and carried by the OllamaException on failure.
+	// Cancelling a returned future aborts the HTTP exchange.
+	// ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Generates asynchronously the embedding of a string
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param str the string to embed
+	 * @return the future embedding vector
+	 */
+	public CompletableFuture<float[]> embedAsync( UUID id, String str ) {
+		CompletableFuture<List<float[]>> all = embedAllAsync( id, List.of( str ) );
+		return forwardCancel( all.thenApply( embs -> embs.get( 0 ) ), all );
+	}
+
+	/**
+	 * Generates asynchronously the embedding of a Literal term
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param term the Literal to embed
+	 * @return the future embedding vector
+	 */
+	public CompletableFuture<float[]> embedAsync( UUID id, Literal term ) {
+		return embedAsync( id, preprocess( term ) );
+	}
+
+	/**
+	 * Generates asynchronously the embeddings of many strings, sending the batches in parallel
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param strs the strings to embed
+	 * @return the future embedding vectors in the same order of strs
+	 */
+	public CompletableFuture<List<float[]>> embedAllAsync( UUID id, List<String> strs ) {
+		List<CompletableFuture<List<float[]>>> batches = new ArrayList<>();
+		for ( int from = 0; from < strs.size(); from += EMB_BATCH_SIZE ) {
+			List<String> batch = strs.subList( from, Math.min( from + EMB_BATCH_SIZE, strs.size() ) );
+			batches.add( send( id, "embed", embedJson( batch ) ).thenApply( Ollama::parseEmbeddings ) );
+		}
+		CompletableFuture<?>[] sources = batches.toArray( new CompletableFuture<?>[0] );
+		CompletableFuture<List<float[]>> all = CompletableFuture.allOf( sources )
+			.thenApply( v -> {
+				List<float[]> embs = new ArrayList<>( strs.size() );
+				for ( CompletableFuture<List<float[]>> batch : batches )
+					embs.addAll( batch.join() );
+				return embs;
+			});
+		// Cancelling the result cancels all the batches
+		return forwardCancel( all, sources );
+	}
+
+	/**
+	 * Classifies asynchronously a message Illocutionary Force
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param msg the input message
+	 * @return the future Literal correspondent to the Illocutionary Force
+	 */
+	public CompletableFuture<Literal> classifyAsync( UUID id, String msg ) {
+		return classifyAsync( id, msg, null );
+	}
+
+	/**
+	 * Classifies asynchronously a message Illocutionary Force, calling the classification model only if needed:
+	 * <ol>
+	 * <li> a cached message with the same normal form gives its classification </li>
+	 * <li> the embedding classifier, if trained, gives the Illocutionary Force when confident </li>
+	 * <li> the similarity tier of the cache, if enabled, gives the classification of a similar cached message </li>
+	 * <li> otherwise the classification model is called </li>
+	 * </ol>
+	 * The steps after the first one wait for the embedding of the message. The classification model is called at once,
+	 * in parallel with the embedding, so that a message not classified from the embedding does not wait for the two
+	 * one after the other: its request is cancelled when the embedding gives the Illocutionary Force. A failed
+	 * embedding leaves the classification to the model.
+	 * Cancelling the result cancels the classification request, not the embedding, which belongs to the caller.
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param msg the input message
+	 * @param emb the future embedding of the message without mentions (null if not available)
+	 * @return the future Literal correspondent to the Illocutionary Force
+	 */
+	public CompletableFuture<Literal> classifyAsync( UUID id, String msg, CompletableFuture<float[]> emb ) {
+		String key = ilfCache == null ? null : IlfCache.normalize( msg );
+		if ( key != null ) {
+			Literal cached = ilfCache.get( key );
+			if ( cached != null )
+				return CompletableFuture.completedFuture( cached );
+		}
+		boolean similarity = ilfCache != null && ilfCache.usesSimilarity();
+		if ( emb == null || ( ilfClassifier == null && !similarity ) ) {
+			if ( key != null )
+				ilfCache.miss();
+			CompletableFuture<Literal> generated = generateIlfAsync( id, msg );
+			return forwardCancel( generated.thenApply( ilf -> remember( key, ilf, null ) ), generated );
+		}
+		CompletableFuture<Literal> generated = generateIlfAsync( id, msg );
+		CompletableFuture<Literal> classified = emb.handle( ( vec, e ) -> vec ).thenCompose( vec -> {
+			Literal ilf = vec == null || ilfClassifier == null ? null : ilfClassifier.classify( vec );
+			if ( ilf != null )
+				logger.fine( () -> "Illocutionary Force classified from the embedding: " + msg );
+			else if ( similarity && vec != null )
+				ilf = ilfCache.getSimilar( vec );
+			else if ( key != null )
+				ilfCache.miss();
+			if ( ilf == null )
+				return generated.thenApply( g -> remember( key, g, vec ) );
+			generated.cancel( true );
+			return CompletableFuture.completedFuture( remember( key, ilf, vec ) );
+		});
+		return forwardCancel( classified, generated );
+	}
+
+	/**
+	 * Stores a classification in the cache, if enabled
+	 * @param key the normalized message (null if the cache is disabled)
+	 * @param ilf the Illocutionary Force
+	 * @param emb the embedding of the message (can be null)
+	 * @return the Illocutionary Force
+	 */
+	private Literal remember( String key, Literal ilf, float[] emb ) {
+		if ( key != null )
+			ilfCache.put( key, ilf, emb );
+		return ilf;
+	}
+
+	/**
+	 * Calls the classification model
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param msg the input message
+	 * @return the future Literal correspondent to the Illocutionary Force
+	 */
+	private CompletableFuture<Literal> generateIlfAsync( UUID id, String msg ) {
+		CompletableFuture<String> sent = send( id, "generate", generateJson( CLASS_MODEL, msg, ILF_SCHEMA ) );
+		return forwardCancel( sent.thenApply( Ollama::parseIlf ), sent );
+	}
+
+	/**
+	 * Translates asynchronously a user message to a Literal
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param msg the input message
+	 * @param nearest the nearest term in the embedding space
+	 * @param ilf the classified Illocutionary Force
+	 * @param examples a list of all the terms with same functor and arity of the nearest
+	 * @return the future Literal; it completes exceptionally with an OllamaException if the prompt cannot be read
+	 * or the answer is not a valid Jason term
+	 */
+	public CompletableFuture<Literal> generateAsync( UUID id, String msg, Literal nearest, Literal ilf, List<Literal> examples ) {
+		JSONObject json;
+		try {
+			json = nl2logJson( msg, nearest, ilf, examples );
+		} catch ( IOException ioe ) {
+			return CompletableFuture.failedFuture( new OllamaException( id, "Prompt loading failed: " + ioe.getMessage(), ioe ) );
+		}
+		CompletableFuture<String> sent = send( id, "generate", generateJson( GEN_MODEL, json.getString( "prompt" ), json.getJSONObject( "format" ) ) );
+		return forwardCancel( sent.thenApply( body -> {
+				try {
+					return parseTerm( body );
+				} catch ( ParseException pe ) {
+					throw new OllamaException( id, pe.getMessage(), pe );
+				}
+			}), sent );
+	}
+
+	/**
+	 * Translates asynchronously a Jason message in Natural Language
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param msg the KQML message
+	 * @return the future natural language translation
+	 */
+	public CompletableFuture<String> generateAsync( UUID id, Message msg ) {
+		String prompt;
+		try {
+			prompt = log2nlPrompt( msg );
+		} catch ( IOException ioe ) {
+			return CompletableFuture.failedFuture( new OllamaException( id, "Prompt loading failed: " + ioe.getMessage(), ioe ) );
+		}
+		CompletableFuture<String> sent = send( id, "generate", generateJson( LOG2NL_MODEL, prompt, null ) );
+		return forwardCancel( sent.thenApply( Ollama::parseNl ), sent );
+	}
+
+	/**
+	 * Creates asynchronously a prompted model
+	 * @param from the starting model
+	 * @param model the final model name
+	 * @param t the temperature
+	 * @param sys_file the path to a system file
+	 * @param seed the seed for generation
+	 * @return a future completed when the model is created
+	 */
+	public CompletableFuture<Void> createAsync( String from, String model, float t, String sys_file, int seed ) {
+		JSONObject json;
+		try {
+			json = createJson( from, model, t, sys_file, seed );
+		} catch ( IOException ioe ) {
+			return CompletableFuture.failedFuture( new OllamaException( null, "System file loading failed: " + ioe.getMessage(), ioe ) );
+		}
+		CompletableFuture<String> sent = send( null, "create", json );
+		return forwardCancel( sent.thenApply( body -> null ), sent );
+	}
+
+	/**
+	 * Makes the cancellation of a stage reach the futures it depends on: cancelling a dependent stage alone
+	 * would leave the HTTP exchanges running
+	 * @param stage the stage returned to the caller
+	 * @param sources the futures to cancel with the stage
+	 * @return the stage
+	 */
+	private static <T> CompletableFuture<T> forwardCancel( CompletableFuture<T> stage, CompletableFuture<?>... sources ) {
+		stage.whenComplete( ( r, e ) -> {
+			if ( stage.isCancelled() )
+				for ( CompletableFuture<?> source : sources )
+					source.cancel( true );
+		});
+		return stage;
+	}
+
+	/**
+	 * Sends asynchronously a request to the Ollama API
+	 * @param id the chat entry the request belongs to (can be null)
+	 * @param endpoint the API endpoint (embed, generate, create)
+	 * @param json the body of the request
+	 * @return the future body of the answer; it completes exceptionally with an OllamaException on errors
+	 */
+	private CompletableFuture<String> send( UUID id, String endpoint, JSONObject json ) {
+		CompletableFuture<HttpResponse<String>> exchange = client.sendAsync( request( endpoint, json, id ), HttpResponse.BodyHandlers.ofString() );
+		// A plain future: the stages of the client future would report a cancellation as a failed exchange
+		CompletableFuture<String> body = new CompletableFuture<>();
+		exchange.whenComplete( ( res, e ) -> {
+			if ( e != null ) {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				body.completeExceptionally( new OllamaException( id, endpoint + " failed: " + cause, cause ) );
+			} else if ( res.statusCode() != 200 ) {
+				body.completeExceptionally( new OllamaException( id, endpoint + " answered " + res.statusCode() + ": " + res.body() ) );
+			} else {
+				body.complete( res.body() );
+			}
+		});
+		// Cancelling the body cancels the HTTP exchange
+		return forwardCancel( body, exchange );
+	}
+
+	// ----------------------------------------------------------------------------------------------------
+	// Requests and answers
+	// ----------------------------------------------------------------------------------------------------
+
+	/**
+	 * Builds a POST request to the Ollama API
+	 * @param endpoint the API endpoint
+	 * @param json the body of the request
+	 * @param id the chat entry the request belongs to, sent in the X-Request-Id header (can be null)
+	 * @return the request
+	 */
+	private HttpRequest request( String endpoint, JSONObject json, UUID id ) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder()
+			.uri( URI.create( URL + endpoint ) )
+			.header( "Content-Type", "application/json" )
+			.timeout( TIMEOUT )
+			.POST( HttpRequest.BodyPublishers.ofString( json.toString() ) );
+		if ( id != null )
+			builder.header( "X-Request-Id", id.toString() );
+		return builder.build();
+	}
+
+	/**
+	 * Builds the body of an embedding request
+	 * @param inputs the strings to embed
+	 * @return the JSON body
+	 */
+	private JSONObject embedJson( List<String> inputs ) {
+		JSONObject json = new JSONObject();
+		json.put( "model", EMB_MODEL );
+		json.put( "input", new JSONArray( inputs ) );
+		json.put( "stream", false );
+		return json;
+	}
+
+	/**
+	 * Builds the body of a generation request
+	 * @param model the model to use
+	 * @param prompt the prompt
+	 * @param format the Json Schema for the output (null for free text)
+	 * @return the JSON body
+	 */
+	private JSONObject generateJson( String model, String prompt, JSONObject format ) {
+		JSONObject json = new JSONObject();
+		json.put( "model", model );
+		json.put( "prompt", prompt );
+		if ( format != null )
+			json.put( "format", format );
+		json.put( "stream", false );
+		return json;
+	}
+
+	/**
+	 * Builds the body of a model creation request
+	 * @param from the starting model
+	 * @param model the final model name
+	 * @param t the temperature
+	 * @param sys_file the path to a system file
+	 * @param seed the seed for generation (null to leave the default)
+	 * @return the JSON body
+	 * @throws IOException if the system file cannot be read
+	 */
+	private JSONObject createJson( String from, String model, float t, String sys_file, Integer seed ) throws IOException {
 		JSONObject params = new JSONObject();
 		params.put( "temperature", t );
-		params.put( "seed", seed );
+		if ( seed != null )
+			params.put( "seed", seed );
 		JSONObject json = new JSONObject();
 		json.put( "from", from );
 		json.put( "model", model );
 		json.put( "stream", false );
 		json.put( "parameters", params );
+		json.put( "system", Files.readString( Path.of( sys_file ) ) );
+		return json;
+	}
+
+	/**
+	 * Builds a JSON Schema with the available Illocutionary Forces
+	 * @return the schema
+	 */
+	private JSONObject ilfSchema() {
+        JSONObject ilf = new JSONObject();
+        ilf.put( "type", "string" );
+        ilf.put( "enum", SUPPORTED_ILF );
+        JSONObject properties = new JSONObject();
+        properties.put( "Illocutionary Force", ilf );
+        JSONObject json = new JSONObject();
+        json.put( "type", "object" );
+        json.put( "properties", properties );
+        json.put( "required", new JSONArray().put( "Illocutionary Force" ) );
+		return json;
+	}
+
+	/**
+	 * Builds the prompt and the output schema for the translation of a user message
+	 * @param msg the input message
+	 * @param nearest the nearest term in the embedding space
+	 * @param ilf the classified Illocutionary Force
+	 * @param examples a list of all the terms with same functor and arity of the nearest
+	 * @return a JSON object with the "prompt" and the "format" schema
+	 * @throws IOException if fails reading the NL2LOG_PROMPT file
+	 */
+	private JSONObject nl2logJson( String msg, Literal nearest, Literal ilf, List<Literal> examples ) throws IOException {
+
+        List<JSONObject> jsonExamples = new ArrayList<>();
+		List<Map<String, Term>> mapExamples = new ArrayList<>();
+		// Translate the term in JSON
+        Map<String, Term> nearestJson = termToMap( nearest );
+		// Translate all the examples
+        for ( Literal example : examples ) {
+			try {
+				Map<String, Term> mapExample = termToMap( example );
+				mapExamples.add( mapExample );
+				jsonExamples.add( mapToJson( mapExample ) );
+			} catch ( NoValueException nve ) {
+				logger.log( Level.WARNING, "The example " + example + " is skipped", nve );
+			}
+		}
+		// Generate a schema with types provided in the examples for each arg
+        JSONObject schema = genJSONSchema( mapExamples );
+		logger.fine( () -> "Sentence: " + msg + ", nearest: " + nearestJson + ", ilf: " + ilf + ", examples: " + jsonExamples );
+		// Fill the placeholders of the compiled prompt
+        String prompt = nl2logTemplate().render( msg, nearestJson.toString(), ilf.toString(), jsonExamples.toString() );
+		// // List variable names: they may have meaningful names
+        // // List<Set<Term>> varNames = getVarNames( examples );
+        // // for ( int i = 0; i < varNames.size(); i++ )
+        // //     if ( !varNames.get( i ).isEmpty() )
+        // //         prompt += " - arg" + i + " should contain " + varNames.get( i ) +
+        // //         "; if this piece of information is in the sentence place it here, otherwise place underscore or null";
+		return new JSONObject().put( "prompt", prompt ).put( "format", schema );
+	}
+
+	/**
+	 * Builds the prompt for the translation of a Jason message
+	 * @param msg the KQML message
+	 * @return the prompt
+	 * @throws IOException if fails to open LOG2NL_PROMPT
+	 */
+	private String log2nlPrompt( Message msg ) throws IOException {
+		return log2nlTemplate().render( msg.getSender(), msg.getIlForce(), msg.getPropCont().toString() );
+	}
+
+	/**
+	 * Parses the answer of the EMBED API
+	 * @param body the body of the answer
+	 * @return the embedding vectors, one for each input
+	 */
+	private static List<float[]> parseEmbeddings( String body ) {
+		// Load the content inside a JSONObject
+		JSONObject emb_json = new JSONObject( body );
+		// Get the embedding arrays, one for each input
+		JSONArray vecs = emb_json.getJSONArray( "embeddings" );
+		List<float[]> embs = new ArrayList<>( vecs.length() );
+		for ( int i = 0; i < vecs.length(); i++ ) {
+			// Copy the JSONArray into a primitive array
+			JSONArray vec = vecs.getJSONArray( i );
+			float[] emb = new float[ vec.length() ];
+			for( int j = 0; j < vec.length(); j++ ) {
+				emb[ j ] = vec.getFloat( j );
+			}
+			embs.add( emb );
+		}
+		return embs;
+	}
+
+	/**
+	 * Parses the answer of the classification
+	 * @param body the body of the answer
+	 * @return the Literal correspondent to the Illocutionary Force
+	 */
+	private static Literal parseIlf( String body ) {
+		// Load the answer inside a JSON Object
+        JSONObject ans = new JSONObject( body );
+		// Postprocess
+        String ilfObjStr = ans.getString( "response" )
+            .replaceAll( "```json\\s*", "" )
+            .replaceAll( "```\\s*$", "" )
+            .trim();
+        JSONObject ilfObj = new JSONObject( ilfObjStr );
+		// Return the literal
+        return createLiteral( ilfObj.getString( "Illocutionary Force" ).trim() );
+	}
+
+	/**
+	 * Parses the answer of the translation of a user message
+	 * @param body the body of the answer
+	 * @return the generated Literal
+	 * @throws ParseException if the provided answer is not a valid Jason term
+	 */
+	private static Literal parseTerm( String body ) throws ParseException {
+        JSONObject answer = new JSONObject( body );
+        JSONObject response = new JSONObject( answer.getString( "response" ) );
 		try {
-			json.put( "system", Files.readString( Path.of(sys_file ) ) );
-			HttpRequest request = HttpRequest.newBuilder()
-				.uri( URI.create( URL + "create" ) )
-				.header( "Content-Type", "application/json" )
-				.POST( HttpRequest.BodyPublishers.ofString( json.toString() ) )
-				.build();
-
-			HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
-		} catch ( IOException e ) {
-			e.printStackTrace();
-		} catch ( InterruptedException e ) {
-			e.printStackTrace();
+			Literal responseTerm = jsonToTerm( response );
+			return responseTerm;
+		} catch ( ParseException pe ) {
+			throw new ParseException( "LLM error! Generated: " + response + ". It is not a valid Jason term." );
 		}
 	}
+
+	/**
+	 * Parses the answer of the translation of a Jason message
+	 * @param body the body of the answer
+	 * @return the natural language translation without the thinking sections
+	 */
+	private static String parseNl( String body ) {
+		JSONObject answer = new JSONObject( body );
+		return answer.getString( "response" ).replaceAll( "(?s)<think>.*?</think>", "" );
+	}
 }
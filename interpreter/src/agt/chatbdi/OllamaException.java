@@ -0,0 +1,52 @@
+package chatbdi;
+
+import java.util.UUID;
+
+/**
+ * The exception raised by the asynchronous Ollama API.
+ * It carries the id of the chat entry the failed request belongs to.
+ * @author Andrea Gatti
+ */
+public class OllamaException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The chat entry the request belongs to (can be null) */
+    private final UUID requestId;
+
+    /**
+     * Build a new exception
+     * @param requestId the chat entry the request belongs to (can be null)
+     * @param msg the error message
+     */
+    public OllamaException( UUID requestId, String msg ) {
+        super( msg );
+        this.requestId = requestId;
+    }
+
+    /**
+     * Build a new exception
+     * @param requestId the chat entry the request belongs to (can be null)
+     * @param msg the error message
+     * @param cause the exception that caused the failure
+     */
+    public OllamaException( UUID requestId, String msg, Throwable cause ) {
+        super( msg, cause );
+        this.requestId = requestId;
+    }
+
+    /**
+     * Get the id of the chat entry the failed request belongs to
+     * @return the UUID, null if the request was not related to a chat entry
+     */
+    public UUID getRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public String getMessage() {
+        if ( requestId == null )
+            return super.getMessage();
+        return "[" + requestId + "] " + super.getMessage();
+    }
+}
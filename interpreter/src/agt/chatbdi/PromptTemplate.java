@@ -0,0 +1,245 @@
+package chatbdi;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * A PromptTemplate is a prompt file with named placeholders (e.g. SENTENCE), read and compiled once.
+ * The compilation splits the text at the placeholders, so rendering a prompt only appends the fixed parts and the
+ * values in order: there is no disk access and no scan of the text for each request.
+ * A placeholder is replaced once, by its value: the values are never scanned for other placeholders. Where two
+ * placeholders start at the same position (e.g. ILF and ILFORCE) the longest one wins.
+ * The templates are shared by path: with the hot reload the file is watched and the template is compiled again
+ * each time the file changes, so the edits to the prompts are live without restarting the mas.
+ * @author Andrea Gatti
+ */
+public class PromptTemplate {
+
+    private static final Logger logger = Logger.getLogger( PromptTemplate.class.getName() );
+    /** The templates already loaded, by file and placeholders */
+    private static final Map<String, PromptTemplate> templates = new ConcurrentHashMap<>();
+
+    /** The prompt file */
+    private final Path file;
+    /** The names of the placeholders, in the order of the values given to render */
+    private final String[] slots;
+    /** The compiled text, replaced as a whole on reload */
+    private volatile Compiled compiled;
+
+    /** The text split at the placeholders */
+    private static final class Compiled {
+        /** The fixed parts of the text: parts[i] comes before the i-th placeholder found */
+        final String[] parts;
+        /** The slot of the i-th placeholder found */
+        final int[] slotAt;
+        /** The length of the fixed parts */
+        final int length;
+
+        Compiled( String[] parts, int[] slotAt ) {
+            this.parts = parts;
+            this.slotAt = slotAt;
+            int len = 0;
+            for ( String part : parts )
+                len += part.length();
+            this.length = len;
+        }
+    }
+
+    private PromptTemplate( Path file, String[] slots ) {
+        this.file = file;
+        this.slots = slots;
+    }
+
+    /**
+     * Get the template of a prompt file, reading and compiling it the first time
+     * @param file the path of the prompt file
+     * @param reload true to compile the template again each time the file changes
+     * @param slots the names of the placeholders, in the order of the values given to render
+     * @return the template
+     * @throws IOException if the file cannot be read
+     */
+    public static PromptTemplate of( String file, boolean reload, String... slots ) throws IOException {
+        Path path = Path.of( file ).toAbsolutePath().normalize();
+        String key = path + Arrays.toString( slots );
+        PromptTemplate template = templates.get( key );
+        if ( template == null ) {
+            template = new PromptTemplate( path, slots.clone() );
+            template.load();
+            PromptTemplate previous = templates.putIfAbsent( key, template );
+            if ( previous != null )
+                template = previous;
+        }
+        if ( reload )
+            Reloader.watch( template );
+        return template;
+    }
+
+    /**
+     * Compiles a text with the given placeholders
+     * @param text the text of the prompt
+     * @param slots the names of the placeholders
+     * @return the compiled text
+     */
+    private static Compiled compile( String text, String[] slots ) {
+        List<String> parts = new ArrayList<>();
+        List<Integer> slotAt = new ArrayList<>();
+        int from = 0;
+        int i = 0;
+        while ( i < text.length() ) {
+            int slot = slotAt( text, i, slots );
+            if ( slot < 0 ) {
+                i++;
+                continue;
+            }
+            parts.add( text.substring( from, i ) );
+            slotAt.add( slot );
+            i += slots[ slot ].length();
+            from = i;
+        }
+        parts.add( text.substring( from ) );
+        int[] slotArray = new int[ slotAt.size() ];
+        for ( int j = 0; j < slotArray.length; j++ )
+            slotArray[ j ] = slotAt.get( j );
+        return new Compiled( parts.toArray( new String[0] ), slotArray );
+    }
+
+    /**
+     * Get the longest placeholder starting at a position of the text
+     * @return the slot of the placeholder, -1 if no placeholder starts there
+     */
+    private static int slotAt( String text, int i, String[] slots ) {
+        int found = -1;
+        for ( int s = 0; s < slots.length; s++ )
+            if ( text.startsWith( slots[ s ], i ) && ( found < 0 || slots[ s ].length() > slots[ found ].length() ) )
+                found = s;
+        return found;
+    }
+
+    /**
+     * Reads and compiles the prompt file
+     * @throws IOException if the file cannot be read
+     */
+    private void load() throws IOException {
+        compiled = compile( Files.readString( file ), slots );
+    }
+
+    /**
+     * Builds the prompt replacing the placeholders with the values
+     * @param values the values of the placeholders, in the order of the slots given to of
+     * @return the prompt
+     */
+    public String render( String... values ) {
+        if ( values.length != slots.length )
+            throw new IllegalArgumentException( "The template " + file + " has " + slots.length + " placeholders, " + values.length + " values given" );
+        Compiled c = compiled;
+        int length = c.length;
+        for ( int slot : c.slotAt )
+            length += values[ slot ].length();
+        StringBuilder prompt = new StringBuilder( length );
+        for ( int i = 0; i < c.slotAt.length; i++ )
+            prompt.append( c.parts[ i ] ).append( values[ c.slotAt[ i ] ] );
+        return prompt.append( c.parts[ c.slotAt.length ] ).toString();
+    }
+
+    /**
+     * Get the prompt file of the template
+     * @return the path of the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * The Reloader watches the directories of the templates with hot reload on a single daemon thread
+     * and compiles again the templates whose file changes.
+     */
+    private static final class Reloader {
+
+        private static WatchService service;
+        /** The templates watched, by directory */
+        private static final Map<Path, List<PromptTemplate>> watched = new HashMap<>();
+
+        /**
+         * Starts watching the file of a template
+         * @param template the template
+         */
+        static synchronized void watch( PromptTemplate template ) {
+            Path dir = template.file.getParent();
+            List<PromptTemplate> inDir = watched.get( dir );
+            if ( inDir != null && inDir.contains( template ) )
+                return;
+            try {
+                if ( service == null ) {
+                    service = FileSystems.getDefault().newWatchService();
+                    Thread thread = new Thread( Reloader::run, "prompt-reloader" );
+                    thread.setDaemon( true );
+                    thread.start();
+                }
+                if ( inDir == null ) {
+                    dir.register( service, ENTRY_CREATE, ENTRY_MODIFY );
+                    inDir = new ArrayList<>();
+                    watched.put( dir, inDir );
+                }
+                inDir.add( template );
+            } catch ( IOException ioe ) {
+                logger.warning( "The prompt " + template.file + " cannot be watched, edits need a restart: " + ioe.getMessage() );
+            }
+        }
+
+        /** Compiles again the templates of the changed files, until the service is closed */
+        private static void run() {
+            while ( true ) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch ( InterruptedException | ClosedWatchServiceException e ) {
+                    return;
+                }
+                Path dir = (Path) key.watchable();
+                for ( WatchEvent<?> event : key.pollEvents() ) {
+                    if ( event.kind() == OVERFLOW )
+                        continue;
+                    Path changed = dir.resolve( (Path) event.context() );
+                    reload( dir, changed );
+                }
+                key.reset();
+            }
+        }
+
+        private static void reload( Path dir, Path changed ) {
+            List<PromptTemplate> toReload = new ArrayList<>();
+            synchronized ( Reloader.class ) {
+                for ( PromptTemplate template : watched.getOrDefault( dir, List.of() ) )
+                    if ( template.file.equals( changed ) )
+                        toReload.add( template );
+            }
+            for ( PromptTemplate template : toReload ) {
+                try {
+                    // Editors truncate the file before writing it: keep the last template, the next event reloads it
+                    String text = Files.readString( changed );
+                    if ( text.isBlank() )
+                        continue;
+                    template.compiled = compile( text, template.slots );
+                    logger.info( "Prompt reloaded: " + changed );
+                } catch ( IOException ioe ) {
+                    logger.warning( "The prompt " + changed + " cannot be reloaded: " + ioe.getMessage() );
+                }
+            }
+        }
+    }
+}
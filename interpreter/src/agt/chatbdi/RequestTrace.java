@@ -0,0 +1,111 @@
+package chatbdi;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A RequestTrace records the steps of the translation of one user message: the time spent in each step and its result.
+ * When the translation ends the whole trace is logged as a single line on the 'chatbdi.trace' logger, e.g.
+ * <pre>trace agent=interpreter id=... total=812.4ms update=0.3ms classify+embed=402.1ms[tell] nearest=1.2ms[price(X)] ...</pre>
+ * Each interpreter decides whether to trace its requests, with the trace_requests user parameter: without it the
+ * requests are traced if the logging properties set the level of the 'chatbdi.trace' logger to INFO or finer.
+ * When disabled, start returns a trace that does nothing: the values of the steps are suppliers, never called.
+ * @author Andrea Gatti
+ */
+public class RequestTrace {
+
+    /** The logger of the traces */
+    private static final Logger logger = Logger.getLogger( "chatbdi.trace" );
+    /** The trace given while the traces are disabled */
+    private static final RequestTrace OFF = new RequestTrace( null, null );
+
+    /** The text of the trace, null if disabled */
+    private final StringBuilder text;
+    /** The length of the agent and id part of the text, where the total time goes */
+    private final int header;
+    /** The time of the trace start */
+    private final long start;
+    /** The time of the last step, guarded by the trace */
+    private long last;
+
+    private RequestTrace( UUID id, String agName ) {
+        this.start = System.nanoTime();
+        this.last = start;
+        if ( agName == null ) {
+            this.text = null;
+            this.header = 0;
+        } else {
+            this.text = new StringBuilder( "trace agent=" ).append( agName ).append( " id=" ).append( id );
+            this.header = text.length();
+        }
+    }
+
+    /**
+     * Check if the logging properties enable the traces, for the interpreters without trace_requests
+     * @return true if the level of the 'chatbdi.trace' logger is set to INFO or finer
+     */
+    public static boolean isEnabledByDefault() {
+        Level level = logger.getLevel();
+        return level != null && level.intValue() <= Level.INFO.intValue();
+    }
+
+    /**
+     * Starts the trace of a request
+     * @param id the chat entry of the message (can be null)
+     * @param agName the interpreter translating the message
+     * @param enabled true if the interpreter traces its requests
+     * @return the trace, doing nothing if the traces are disabled
+     */
+    public static RequestTrace start( UUID id, String agName, boolean enabled ) {
+        if ( !enabled )
+            return OFF;
+        return new RequestTrace( id, agName );
+    }
+
+    /**
+     * Records the end of a step
+     * @param step the name of the step
+     */
+    public void step( String step ) {
+        step( step, null );
+    }
+
+    /**
+     * Records the end of a step and its result
+     * @param step the name of the step
+     * @param value the result of the step, computed only if the trace is enabled (can be null)
+     */
+    public void step( String step, Supplier<?> value ) {
+        // The disabled trace is shared: it must not take its monitor
+        if ( text == null )
+            return;
+        synchronized ( this ) {
+            long now = System.nanoTime();
+            text.append( ' ' ).append( step ).append( '=' ).append( millis( now - last ) ).append( "ms" );
+            if ( value != null )
+                text.append( '[' ).append( value.get() ).append( ']' );
+            last = now;
+        }
+    }
+
+    /**
+     * Ends the trace and logs it
+     * @param outcome how the request ended
+     */
+    public void end( String outcome ) {
+        if ( text == null )
+            return;
+        synchronized ( this ) {
+            text.insert( header, " total=" + millis( System.nanoTime() - start ) + "ms" );
+            text.append( " outcome=" ).append( outcome );
+            logger.info( text.toString() );
+        }
+    }
+
+    private static String millis( long nanos ) {
+        return String.format( Locale.ROOT, "%.1f", nanos / 1e6 );
+    }
+}
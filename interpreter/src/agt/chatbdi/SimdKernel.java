@@ -0,0 +1,81 @@
+package chatbdi;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The dot product computed with the Vector API.
+ * It is loaded by VectorMath only when the jdk.incubator.vector module is available.
+ * @author Andrea Gatti
+ */
+final class SimdKernel implements VectorMath.Kernel {
+
+    /** The widest vector shape supported by the CPU */
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    /** The byte vectors of the same shape: each one is converted into PARTS float vectors */
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    /** The number of float vectors in a byte vector */
+    private static final int PARTS = BYTE_SPECIES.length() / SPECIES.length();
+
+    @Override
+    public double dot( float[] a, int aOffset, float[] b, int bOffset, int len ) {
+        int step = SPECIES.length();
+        int i = 0;
+        // Two accumulators hide the latency of the fused multiply-add
+        FloatVector acc1 = FloatVector.zero( SPECIES );
+        FloatVector acc2 = FloatVector.zero( SPECIES );
+        for ( ; i + 2 * step <= len; i += 2 * step ) {
+            acc1 = FloatVector.fromArray( SPECIES, a, aOffset + i ).fma( FloatVector.fromArray( SPECIES, b, bOffset + i ), acc1 );
+            acc2 = FloatVector.fromArray( SPECIES, a, aOffset + i + step ).fma( FloatVector.fromArray( SPECIES, b, bOffset + i + step ), acc2 );
+        }
+        for ( ; i + step <= len; i += step )
+            acc1 = FloatVector.fromArray( SPECIES, a, aOffset + i ).fma( FloatVector.fromArray( SPECIES, b, bOffset + i ), acc1 );
+        double dot = acc1.add( acc2 ).reduceLanes( VectorOperators.ADD );
+        // The elements left out of the last full vector
+        for ( ; i < len; i++ )
+            dot += a[ aOffset + i ] * b[ bOffset + i ];
+        return dot;
+    }
+
+    @Override
+    public double dot( byte[] a, int aOffset, float[] b, int bOffset, int len ) {
+        int step = SPECIES.length();
+        int byteStep = BYTE_SPECIES.length();
+        int i = 0;
+        FloatVector acc = FloatVector.zero( SPECIES );
+        for ( ; i + byteStep <= len; i += byteStep ) {
+            ByteVector bytes = ByteVector.fromArray( BYTE_SPECIES, a, aOffset + i );
+            for ( int part = 0; part < PARTS; part++ ) {
+                FloatVector floats = (FloatVector) bytes.convertShape( VectorOperators.B2F, SPECIES, part );
+                acc = floats.fma( FloatVector.fromArray( SPECIES, b, bOffset + i + part * step ), acc );
+            }
+        }
+        double dot = acc.reduceLanes( VectorOperators.ADD );
+        for ( ; i < len; i++ )
+            dot += a[ aOffset + i ] * b[ bOffset + i ];
+        return dot;
+    }
+
+    @Override
+    public double dot( byte[] a, int aOffset, byte[] b, int bOffset, int len ) {
+        int byteStep = BYTE_SPECIES.length();
+        int i = 0;
+        // The products of int8 values are exact in float as long as the sums stay below 2^24
+        FloatVector acc = FloatVector.zero( SPECIES );
+        for ( ; i + byteStep <= len; i += byteStep ) {
+            ByteVector bytesA = ByteVector.fromArray( BYTE_SPECIES, a, aOffset + i );
+            ByteVector bytesB = ByteVector.fromArray( BYTE_SPECIES, b, bOffset + i );
+            for ( int part = 0; part < PARTS; part++ ) {
+                FloatVector floatsA = (FloatVector) bytesA.convertShape( VectorOperators.B2F, SPECIES, part );
+                FloatVector floatsB = (FloatVector) bytesB.convertShape( VectorOperators.B2F, SPECIES, part );
+                acc = floatsA.fma( floatsB, acc );
+            }
+        }
+        double dot = acc.reduceLanes( VectorOperators.ADD );
+        for ( ; i < len; i++ )
+            dot += a[ aOffset + i ] * b[ bOffset + i ];
+        return dot;
+    }
+}
@@ -0,0 +1,70 @@
+package chatbdi;
+
+/**
+ * Removes the &lt;think&gt;...&lt;/think&gt; sections from a text that arrives in chunks.
+ * Tags split between two chunks are recognized: only the characters that can still be the start of a tag are kept
+ * pending, and the content of the thinking sections is dropped as soon as it arrives.
+ * @author Andrea Gatti
+ */
+class ThinkFilter {
+
+    private static final String OPEN = "<think>";
+    private static final String CLOSE = "</think>";
+
+    /** true while inside a thinking section */
+    private boolean inThink = false;
+    /** The end of the last chunk that can be the beginning of a tag */
+    private String pending = "";
+
+    /**
+     * Filters the next chunk
+     * @param chunk the chunk received
+     * @return the visible text of the chunk (can be empty)
+     */
+    String process( String chunk ) {
+        String buf = pending + chunk;
+        StringBuilder out = new StringBuilder();
+        int i = 0;
+        while ( true ) {
+            String tag = inThink ? CLOSE : OPEN;
+            int idx = buf.indexOf( tag, i );
+            if ( idx >= 0 ) {
+                if ( !inThink )
+                    out.append( buf, i, idx );
+                i = idx + tag.length();
+                inThink = !inThink;
+                continue;
+            }
+            int keep = partialTag( buf, i, tag );
+            if ( !inThink )
+                out.append( buf, i, buf.length() - keep );
+            pending = buf.substring( buf.length() - keep );
+            return out.toString();
+        }
+    }
+
+    /**
+     * Ends the text
+     * @return the visible characters still pending
+     */
+    String flush() {
+        String rest = inThink ? "" : pending;
+        pending = "";
+        return rest;
+    }
+
+    /**
+     * Computes the length of the longest suffix of buf (starting from from) that is a prefix of tag
+     * @param buf the text
+     * @param from the first character to consider
+     * @param tag the tag to look for
+     * @return the length of the suffix
+     */
+    private static int partialTag( String buf, int from, String tag ) {
+        int max = Math.min( tag.length() - 1, buf.length() - from );
+        for ( int len = max; len > 0; len-- )
+            if ( buf.regionMatches( buf.length() - len, tag, 0, len ) )
+                return len;
+        return 0;
+    }
+}
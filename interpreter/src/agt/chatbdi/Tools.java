@@ -7,6 +7,7 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.logging.Logger;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
@@ -21,6 +22,9 @@ import jason.NoValueException;
  */
 public class Tools {
 
+    /** The logger of the conversions: their messages are built only if the level is enabled */
+    private static final Logger logger = Logger.getLogger( Tools.class.getName() );
+
     private static final JSONObject ATOM;
     private static final JSONObject VAR;
     private static final JSONObject STRING;
@@ -52,32 +56,229 @@ public class Tools {
      * It gives more weight to the head of the literal
      */
     public static String preprocess( Literal lit ) {
-        // Note: 'replace' replaces all the occurrences. 'replaceAll' takes a regex as first arg
+        // The text is written in a single pass, walking the terms instead of parsing their string:
+        // '_' becomes a space, 'my' becomes 'your', parenthesis, commas and runs of =<>! are surrounded by spaces,
+        // the spaces are collapsed and each argument is trimmed
+        TextBuilder text = new TextBuilder();
 
-		// Get the functor
-        String functor = lit.getFunctor().replace( "_", " " ).replace( "my", "your" ) + " ";
-        String terms = "";
+        // Get the functor, repeated 4 times (weighted)
+        text.appendFunctor( lit.getFunctor() );
+        String functor = text.toString();
+        text.append( functor ).append( functor ).append( functor );
 
-		// If the term does not have nested terms return it repeated 4 times (weighted)
+        // If the term does not have nested terms return the functor only
         if ( !lit.hasTerm() )
-            return functor.repeat( 4 );
+            return text.toString();
 
-		// Preprocess the term arguments
+        // Preprocess the term arguments, separated by a space
+        int terms = text.length();
         for ( Term t : lit.getTerms() ) {
-            String tStr = t.toString();
-            tStr = tStr.replace( "_", " ");
-            tStr = tStr.replace( "(", " ( " );
-            tStr = tStr.replace( ")", " ) " );
-            tStr = tStr.replace( ",", " , " );
-            tStr = tStr.replace( "my", "your" );
-            tStr = tStr.replaceAll( "([=<>!]+)", " $1 " );
-            tStr = tStr.replaceAll( "\\s+", " " );
-            tStr = tStr.trim();
-            terms += tStr + " ";
+            if ( text.length() > terms )
+                text.append( ' ' );
+            text.appendArgument( t );
+        }
+        text.trimFrom( terms );
+        return text.toString();
+    }
+
+    /**
+     * The buffer where preprocess writes the text to embed
+     */
+    private static final class TextBuilder {
+
+        private final StringBuilder sb = new StringBuilder( 64 );
+        /** The position where the current argument starts */
+        private int argStart;
+        /** true if a space must be written before the next character of the argument */
+        private boolean space;
+        /** true if the last character written is one of =<>! */
+        private boolean inOperator;
+        /** true if an 'm' is held back, waiting to know if it starts 'my' */
+        private boolean heldM;
+
+        TextBuilder append( String str ) {
+            sb.append( str );
+            return this;
+        }
+
+        TextBuilder append( char c ) {
+            sb.append( c );
+            return this;
+        }
+
+        int length() {
+            return sb.length();
+        }
+
+        /**
+         * Appends a functor followed by a space, with '_' as space and 'my' as 'your'
+         * @param functor the functor
+         */
+        void appendFunctor( String functor ) {
+            for ( int i = 0; i < functor.length(); i++ ) {
+                char c = functor.charAt( i );
+                if ( c == 'm' && i + 1 < functor.length() && functor.charAt( i + 1 ) == 'y' ) {
+                    sb.append( "your" );
+                    i++;
+                } else {
+                    sb.append( c == '_' ? ' ' : c );
+                }
+            }
+            sb.append( ' ' );
+        }
+
+        /**
+         * Appends an argument of the literal, trimmed
+         * @param t the argument
+         */
+        void appendArgument( Term t ) {
+            argStart = sb.length();
+            space = false;
+            inOperator = false;
+            heldM = false;
+            walk( t );
+            if ( heldM )
+                write( 'm' );
+            trimFrom( argStart );
+        }
+
+        /**
+         * Writes a term as its toString would, without building the intermediate string for atoms, structures and lists
+         * @param t the term
+         */
+        private void walk( Term t ) {
+            if ( t.getClass() == Atom.class ) {
+                feedNS( (Atom) t );
+                feed( ( (Atom) t ).getFunctor() );
+            } else if ( t.getClass() == LiteralImpl.class || t.getClass() == Structure.class ) {
+                Structure s = (Structure) t;
+                feedNS( s );
+                if ( t instanceof Literal && ( (Literal) t ).negated() )
+                    feed( '~' );
+                feed( s.getFunctor() );
+                if ( s.getArity() > 0 ) {
+                    feed( '(' );
+                    for ( int i = 0; i < s.getArity(); i++ ) {
+                        if ( i > 0 )
+                            feed( ',' );
+                        walk( s.getTerm( i ) );
+                    }
+                    feed( ')' );
+                }
+                if ( s.hasAnnot() )
+                    walk( s.getAnnots() );
+            } else if ( t.getClass() == ListTermImpl.class ) {
+                // The same steps of ListTermImpl.toString
+                ListTerm list = (ListTerm) t;
+                feed( '[' );
+                while ( !list.isEmpty() ) {
+                    if ( list.getTerm() != null )
+                        walk( list.getTerm() );
+                    if ( list.isTail() )
+                        break;
+                    list = list.getNext();
+                    if ( list == null )
+                        break;
+                    if ( !list.isEmpty() )
+                        feed( ',' );
+                }
+                if ( list != null && list.isTail() ) {
+                    feed( '|' );
+                    walk( list.getTail() );
+                }
+                feed( ']' );
+            } else {
+                feed( t.toString() );
+            }
+        }
+
+        /**
+         * Writes the namespace of a term followed by '::', as its toString does when it is not the default one
+         * @param a the term
+         */
+        private void feedNS( Atom a ) {
+            if ( a.getNS() != Literal.DefaultNS ) {
+                feed( a.getNS().toString() );
+                feed( "::" );
+            }
+        }
+
+        private void feed( String str ) {
+            for ( int i = 0; i < str.length(); i++ )
+                feed( str.charAt( i ) );
+        }
+
+        /**
+         * Writes a character of an argument, applying the replacements
+         * @param c the character
+         */
+        private void feed( char c ) {
+            if ( heldM ) {
+                heldM = false;
+                if ( c == 'y' ) {
+                    write( "your" );
+                    return;
+                }
+                write( 'm' );
+            }
+            switch ( c ) {
+                case '_', ' ', '\t', '\n', '\u000B', '\f', '\r':
+                    space = true;
+                    break;
+                case '(', ')', ',':
+                    space = true;
+                    write( c );
+                    space = true;
+                    break;
+                case '=', '<', '>', '!':
+                    if ( !inOperator )
+                        space = true;
+                    write( c );
+                    inOperator = true;
+                    break;
+                case 'm':
+                    heldM = true;
+                    break;
+                default:
+                    write( c );
+            }
+        }
+
+        private void write( char c ) {
+            if ( inOperator && c != '=' && c != '<' && c != '>' && c != '!' ) {
+                space = true;
+                inOperator = false;
+            }
+            if ( space && sb.length() > argStart )
+                sb.append( ' ' );
+            space = false;
+            sb.append( c );
+        }
+
+        private void write( String str ) {
+            for ( int i = 0; i < str.length(); i++ )
+                write( str.charAt( i ) );
+        }
+
+        /**
+         * Removes the characters up to the space from both the ends of the text after a position, as String.trim does
+         * @param from the position
+         */
+        void trimFrom( int from ) {
+            int end = sb.length();
+            while ( end > from && sb.charAt( end - 1 ) <= ' ' )
+                end--;
+            sb.setLength( end );
+            int begin = from;
+            while ( begin < end && sb.charAt( begin ) <= ' ' )
+                begin++;
+            sb.delete( from, begin );
         }
 
-		// repeat the functor 4 times and append the arguments
-        return functor.repeat( 4 ) + terms.trim();
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
     }
 
     /**
@@ -118,6 +319,42 @@ public class Tools {
         return 1.0 - ( dotProd / ( norm1 * norm2 ) );
     }
 
+    /**
+     * Computes the cosine distance between two primitive vectors
+     * @param emb1 the first vector
+     * @param emb2 the second vector
+     * @return the distance as a double in [0.0, 2.0]
+     * @throws IllegalArgumentException if one of the embedding is null, if they have different sizes or a norm is zero
+     */
+    public static double cosineDistance( float[] emb1, float[] emb2 ) {
+
+        // Sanity checks
+        if ( emb1 == null || emb2 == null )
+            throw new IllegalArgumentException( "One of the embeddings is null" );
+
+        if ( emb1.length != emb2.length )
+            throw new IllegalArgumentException( "Embeddings have different sizes: " +  emb1.length + " and " + emb2.length );
+
+        // Compute the distance
+        double dotProd = VectorMath.dot( emb1, emb2 );
+        double norm1 = norm( emb1 );
+        double norm2 = norm( emb2 );
+
+        if ( norm1 == 0 || norm2 == 0 )
+            throw new IllegalArgumentException( "Embedding norm cannot be ZERO" );
+
+        return 1.0 - ( dotProd / ( norm1 * norm2 ) );
+    }
+
+    /**
+     * Computes the euclidean norm of a vector
+     * @param emb the vector
+     * @return the norm
+     */
+    public static double norm( float[] emb ) {
+        return Math.sqrt( VectorMath.dot( emb, emb ) );
+    }
+
     /**
      * Given a formula it creates a list of subpredicates
      * @param formula the formula can be either a real formula or a simple predicate
@@ -132,7 +369,7 @@ public class Tools {
     public static List<Pred> formulaToList( LogicalFormula formula ) {
         List<Pred> preds = new ArrayList<>();
         if ( formula.isPred() ) {
-            System.out.println( "[DEBUG] " + formula + " is a PRED!" );
+            logger.finest( () -> formula + " is a predicate" );
             preds.add( (Pred) formula );
         }
         if ( formula.isNumeric() || formula.isString() )
@@ -146,15 +383,13 @@ public class Tools {
         }
         if ( formula.isInternalAction() ) {
             Structure s = (Structure) formula;
-            System.out.println( "[DEBUG] Internal Action: " + s );
+            logger.finest( () -> "Internal action: " + s );
             if ( s.hasTerm() ) {
                 for ( Term t : s.getTerms() ) {
-                    System.out.println( "[DEBUG] IA preds before: " + preds );
                     if ( t.isNumeric() || t.isString() )
                         continue;
                     preds.addAll( formulaToList( (LogicalFormula) t ) );
-                    System.out.println( "[DEBUG] IA | " + t );
-                    System.out.println( "[DEBUG] IA preds after : " + preds );
+                    logger.finest( () -> "Internal action argument " + t + ", predicates: " + preds );
                 }
             }
         }
@@ -190,7 +425,7 @@ public class Tools {
         for ( int i = 0; i < term.getArity(); i++ ) {
             jsonMap.put( "arg" + i, term.getTerm( i ) );
         }
-        System.out.println( "[LOG] Map: " + jsonMap.toString() );
+        logger.finer( () -> "Map: " + jsonMap );
         return jsonMap;
     }
 
@@ -235,7 +470,7 @@ public class Tools {
      */
     public static Literal jsonToTerm( JSONObject json ) throws ParseException {
         // TODO: Consider that the arg can be also null or an Integer
-        System.out.println( "[DEBUG] Json object considered: " + json );
+        logger.finer( () -> "JSON object considered: " + json );
         if ( json.length() == 1 )
             return createLiteral( json.getString( "functor" ) );
         String term = json.getString( "functor" ) + "(";
@@ -273,10 +508,7 @@ public class Tools {
         JSONObject properties = new JSONObject();
         properties.put( "functor", new JSONObject().put( "const", examples.get( 0 ).get( "functor" ) ) );
 
-        System.out.println( "[DEBUG] Before examples: " + schema );
-        System.out.println( "[DEBUG] Before examples properties: " + properties );
         for ( String key : examples.get( 0 ).keySet() ) {
-            System.out.println( "[DEBUG] Considering " + key );
             // // Set<String> types = new HashSet<>();
             Set<JSONObject> types = new HashSet<>();
             Set<String> hints = new HashSet<>();
@@ -309,8 +541,7 @@ public class Tools {
                 // // else if ( term.isUnnamedVar() )
                 //     // types.add( "null" );
             }
-            System.out.println( "[DEBUG] Extracted types: " + types );
-            System.out.println( "[DEBUG] Extracted hints: " + hints );
+            logger.finest( () -> "Extracted types of " + key + ": " + types + ", hints: " + hints );
             // // List<JSONObject> jsonTypes = new ArrayList<>();
             // // for ( String type : types )
             // //     jsonTypes.add( new JSONObject().put( "type", type ) );
@@ -322,11 +553,10 @@ public class Tools {
             }
             field.put( "anyOf", new JSONArray( types.toArray() ) );
             properties.put( key, field );
-            System.out.println("[DEBUG] Properties: " + properties );
         }
         schema.put( "properties", properties );
         schema.put( "required", new JSONArray( examples.get( 0 ).keySet().toArray() ) );
-        System.out.println( "[DEBUG] Generated Schema: " + schema.toString() );
+        logger.finer( () -> "Generated schema: " + schema );
         return schema;
     }
 
@@ -0,0 +1,129 @@
+package chatbdi;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import jason.asSyntax.Literal;
+
+/**
+ * The TranslationCache keeps the translations of the last user messages, so that a message sent again to the same
+ * receivers is not classified, embedded and generated again.
+ * A translation is keyed by the message (without mentions, with single spaces) and by the receivers; it holds the
+ * Illocutionary Force, the generated term and the versions of the embedding space it was computed with:
+ * <ul>
+ * <li> the version of the receivers domains (of the whole space for a broadcast), on which the nearest literal depends </li>
+ * <li> the version of the literals with the functor and arity of the nearest one, on which the examples depend </li>
+ * </ul>
+ * A translation is given only if both versions are unchanged, so it is dropped exactly when the part of the space
+ * it depends on changes. The cache is a bounded LRU map.
+ * @author Andrea Gatti
+ */
+public class TranslationCache {
+
+    /** A cached translation */
+    public static class Entry {
+        private final Literal ilf;
+        private final Literal term;
+        private final Literal nearest;
+        private final long domainVersion;
+        private final long examplesVersion;
+
+        /**
+         * Build a translation
+         * @param ilf the Illocutionary Force of the message
+         * @param term the generated term
+         * @param nearest the nearest literal of the space
+         * @param domainVersion the version of the searched domains, taken before the translation
+         * @param examplesVersion the version of the examples, taken before reading them
+         */
+        public Entry( Literal ilf, Literal term, Literal nearest, long domainVersion, long examplesVersion ) {
+            this.ilf = ilf.copy();
+            this.term = term.copy();
+            this.nearest = nearest;
+            this.domainVersion = domainVersion;
+            this.examplesVersion = examplesVersion;
+        }
+
+        /** @return a copy of the Illocutionary Force */
+        public Literal getIlf() {
+            return ilf.copy();
+        }
+
+        /** @return a copy of the generated term */
+        public Literal getTerm() {
+            return term.copy();
+        }
+    }
+
+    /** The translations by message and receivers, in access order */
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits = 0;
+    private long stale = 0;
+    private long misses = 0;
+
+    /**
+     * Build a new cache
+     * @param size the maximum number of translations kept
+     */
+    public TranslationCache( int size ) {
+        this.entries = new LinkedHashMap<>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest ) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Builds the key of a message
+     * @param msg the message written on the chat
+     * @param receivers the list of receiver agents (empty for a broadcast)
+     * @return the key
+     */
+    public static String key( String msg, List<String> receivers ) {
+        List<String> sorted = new ArrayList<>( receivers );
+        sorted.sort( null );
+        return msg.replaceAll( "\\s*@\\S+", "" ).replaceAll( "\\s+", " " ).trim() + "\u0000" + String.join( ",", sorted );
+    }
+
+    /**
+     * Get the translation of a message, if still valid
+     * @param key the key of the message
+     * @param space the embedding space of the translation
+     * @param receivers the list of receiver agents
+     * @return the translation, null if not cached or computed with another version of the space
+     */
+    public synchronized Entry get( String key, EmbeddingSpace space, List<String> receivers ) {
+        Entry entry = entries.get( key );
+        if ( entry == null ) {
+            misses++;
+            return null;
+        }
+        if ( entry.domainVersion != space.getVersion( receivers )
+                || entry.examplesVersion != space.getExamplesVersion( entry.ilf, entry.nearest ) ) {
+            entries.remove( key );
+            stale++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Stores the translation of a message
+     * @param key the key of the message
+     * @param entry the translation
+     */
+    public synchronized void put( String key, Entry entry ) {
+        entries.put( key, entry );
+    }
+
+    /** @return the statistics of the cache, for logging */
+    @Override
+    public synchronized String toString() {
+        return "TranslationCache[size=" + entries.size() + ", hits=" + hits + ", stale=" + stale + ", misses=" + misses + "]";
+    }
+}
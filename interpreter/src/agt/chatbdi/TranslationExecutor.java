@@ -0,0 +1,123 @@
+package chatbdi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The TranslationExecutor runs the translations of the incoming messages.
+ * The tasks run either on virtual threads or on a fixed pool of platform threads,
+ * and at most maxInFlight of them call Ollama at the same time: the others wait in the queue.
+ * The executor keeps simple metrics on the queue depth.
+ * @author Andrea Gatti
+ */
+public class TranslationExecutor {
+
+    /** The executor running the tasks */
+    private final ExecutorService executor;
+    /** Limits the number of translations sent to Ollama at the same time */
+    private final Semaphore inFlightPermits;
+
+    /** The tasks submitted and not yet started */
+    private final AtomicInteger queued = new AtomicInteger( 0 );
+    /** The tasks currently calling Ollama */
+    private final AtomicInteger inFlight = new AtomicInteger( 0 );
+    /** The highest queue depth reached */
+    private final AtomicInteger maxQueued = new AtomicInteger( 0 );
+    /** The tasks failed */
+    private final AtomicLong failed = new AtomicLong( 0 );
+    /** The tasks completed */
+    private final AtomicLong completed = new AtomicLong( 0 );
+
+    /**
+     * Build a new executor
+     * @param virtual true to run each task on a virtual thread, false to use a fixed pool
+     * @param poolSize the number of threads of the pool (ignored with virtual threads)
+     * @param maxInFlight the maximum number of translations running at the same time
+     */
+    public TranslationExecutor( boolean virtual, int poolSize, int maxInFlight ) {
+        if ( virtual )
+            this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        else
+            this.executor = Executors.newFixedThreadPool( poolSize );
+        this.inFlightPermits = new Semaphore( maxInFlight, true );
+    }
+
+    /**
+     * Submits a translation.
+     * onDone is always called once: with the result of the translation, or with the result of onError if the
+     * translation fails or is interrupted while waiting
+     * @param translation the task calling Ollama
+     * @param onError builds the result given to onDone when the translation fails (e.g. an error message)
+     * @param onDone the consumer of the translation result
+     */
+    public <T> void submit( Supplier<T> translation, Function<Throwable, T> onError, Consumer<T> onDone ) {
+        maxQueued.accumulateAndGet( queued.incrementAndGet(), Math::max );
+        executor.execute( () -> {
+            try {
+                inFlightPermits.acquire();
+            } catch ( InterruptedException ie ) {
+                queued.decrementAndGet();
+                Thread.currentThread().interrupt();
+                onDone.accept( onError.apply( ie ) );
+                return;
+            }
+            queued.decrementAndGet();
+            inFlight.incrementAndGet();
+            try {
+                T result;
+                try {
+                    result = translation.get();
+                } catch ( RuntimeException e ) {
+                    failed.incrementAndGet();
+                    result = onError.apply( e );
+                }
+                onDone.accept( result );
+            } finally {
+                inFlight.decrementAndGet();
+                inFlightPermits.release();
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    /** @return the number of translations waiting to start */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /** @return the highest number of translations waiting at the same time */
+    public int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    /** @return the number of translations running */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /** @return the number of translations failed */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** @return the number of translations completed */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /** Stops accepting translations; the submitted ones are completed */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "queued: " + getQueueDepth() + " (max " + getMaxQueueDepth() + "), in flight: " + getInFlight() + ", completed: " + getCompleted() + ", failed: " + getFailed();
+    }
+}
@@ -0,0 +1,171 @@
+package chatbdi;
+
+/**
+ * This class computes the dot products of the embedding space, the kernel of every distance.
+ * When the JVM is started with --add-modules jdk.incubator.vector the products use the SIMD instructions of the CPU
+ * through the Vector API; otherwise, or if the module cannot be loaded, a scalar loop is used.
+ * @author Andrea Gatti
+ */
+public final class VectorMath {
+
+    /**
+     * A dot product implementation
+     */
+    interface Kernel {
+        /**
+         * Computes the dot product of two slices of float arrays
+         * @param a the first array
+         * @param aOffset the first element of the slice of a
+         * @param b the second array
+         * @param bOffset the first element of the slice of b
+         * @param len the length of the slices
+         * @return the dot product
+         */
+        double dot( float[] a, int aOffset, float[] b, int bOffset, int len );
+
+        /**
+         * Computes the dot product of a slice of int8 components and a slice of float components
+         * @param a the quantized array
+         * @param aOffset the first element of the slice of a
+         * @param b the float array
+         * @param bOffset the first element of the slice of b
+         * @param len the length of the slices
+         * @return the dot product (to be multiplied by the scale factor of a)
+         */
+        double dot( byte[] a, int aOffset, float[] b, int bOffset, int len );
+
+        /**
+         * Computes the dot product of two slices of int8 components
+         * @param a the first array
+         * @param aOffset the first element of the slice of a
+         * @param b the second array
+         * @param bOffset the first element of the slice of b
+         * @param len the length of the slices
+         * @return the dot product (to be multiplied by the scale factors of a and b)
+         */
+        double dot( byte[] a, int aOffset, byte[] b, int bOffset, int len );
+    }
+
+    /** The implementation in use, chosen once when the class is loaded */
+    private static final Kernel KERNEL = loadKernel();
+
+    private VectorMath() {
+    }
+
+    /**
+     * Chooses the SIMD kernel if the Vector API is available, the scalar one otherwise
+     * @return the kernel
+     */
+    private static Kernel loadKernel() {
+        if ( ModuleLayer.boot().findModule( "jdk.incubator.vector" ).isEmpty() )
+            return new ScalarKernel();
+        try {
+            // Loaded by name: the class links against the incubator module
+            return (Kernel) Class.forName( "chatbdi.SimdKernel" ).getDeclaredConstructor().newInstance();
+        } catch ( ReflectiveOperationException | LinkageError e ) {
+            return new ScalarKernel();
+        }
+    }
+
+    /**
+     * Check if the dot products use the Vector API
+     * @return true if SIMD, false if scalar
+     */
+    public static boolean isVectorized() {
+        return !( KERNEL instanceof ScalarKernel );
+    }
+
+    /**
+     * Computes the dot product of two slices of float arrays
+     * @param a the first array
+     * @param aOffset the first element of the slice of a
+     * @param b the second array
+     * @param bOffset the first element of the slice of b
+     * @param len the length of the slices
+     * @return the dot product
+     */
+    public static double dot( float[] a, int aOffset, float[] b, int bOffset, int len ) {
+        return KERNEL.dot( a, aOffset, b, bOffset, len );
+    }
+
+    /**
+     * Computes the dot product of a slice of int8 components and a slice of float components
+     * @param a the quantized array
+     * @param aOffset the first element of the slice of a
+     * @param b the float array
+     * @param bOffset the first element of the slice of b
+     * @param len the length of the slices
+     * @return the dot product (to be multiplied by the scale factor of a)
+     */
+    public static double dot( byte[] a, int aOffset, float[] b, int bOffset, int len ) {
+        return KERNEL.dot( a, aOffset, b, bOffset, len );
+    }
+
+    /**
+     * Computes the dot product of two slices of int8 components
+     * @param a the first array
+     * @param aOffset the first element of the slice of a
+     * @param b the second array
+     * @param bOffset the first element of the slice of b
+     * @param len the length of the slices
+     * @return the dot product (to be multiplied by the scale factors of a and b)
+     */
+    public static double dot( byte[] a, int aOffset, byte[] b, int bOffset, int len ) {
+        return KERNEL.dot( a, aOffset, b, bOffset, len );
+    }
+
+    /**
+     * Computes the dot product of two vectors of the same size
+     * @param a the first vector
+     * @param b the second vector
+     * @return the dot product
+     */
+    public static double dot( float[] a, float[] b ) {
+        return KERNEL.dot( a, 0, b, 0, a.length );
+    }
+
+    /**
+     * Computes the unit vector with the same direction of a vector
+     * @param vec the vector
+     * @return a new vector with norm 1
+     * @throws IllegalArgumentException if the norm of the vector is zero
+     */
+    public static float[] normalize( float[] vec ) {
+        double norm = Math.sqrt( dot( vec, vec ) );
+        if ( norm == 0 )
+            throw new IllegalArgumentException( "Embedding norm cannot be ZERO" );
+        float[] unit = new float[ vec.length ];
+        for ( int i = 0; i < vec.length; i++ )
+            unit[ i ] = (float) ( vec[ i ] / norm );
+        return unit;
+    }
+
+    /**
+     * The dot product as a plain loop
+     */
+    static final class ScalarKernel implements Kernel {
+        @Override
+        public double dot( float[] a, int aOffset, float[] b, int bOffset, int len ) {
+            double dot = 0.0;
+            for ( int i = 0; i < len; i++ )
+                dot += a[ aOffset + i ] * b[ bOffset + i ];
+            return dot;
+        }
+
+        @Override
+        public double dot( byte[] a, int aOffset, float[] b, int bOffset, int len ) {
+            double dot = 0.0;
+            for ( int i = 0; i < len; i++ )
+                dot += a[ aOffset + i ] * b[ bOffset + i ];
+            return dot;
+        }
+
+        @Override
+        public double dot( byte[] a, int aOffset, byte[] b, int bOffset, int len ) {
+            long dot = 0;
+            for ( int i = 0; i < len; i++ )
+                dot += a[ aOffset + i ] * b[ bOffset + i ];
+            return dot;
+        }
+    }
+}
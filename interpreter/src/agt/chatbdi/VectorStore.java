@@ -0,0 +1,292 @@
+package chatbdi;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import jason.asSyntax.*;
+
+/**
+ * This class stores the embedding vectors of one subspace in a dense, primitive layout.
+ * All the vectors live in a single float array, one row after the other, normalized to unit length:
+ * the cosine distance between two rows is one dot product, computed by VectorMath.
+ * The literals are mapped to their row index, so that a scan over the subspace never boxes a value.
+ * The rows are also indexed by the functor and the arity of their literal.
+ * <p>
+ * A quantized store keeps every component as a byte, with a scale factor for each row: it needs a quarter of the memory
+ * and the distances are approximated (the query vectors are not quantized).
+ * @author Andrea Gatti
+ */
+public class VectorStore {
+
+    /** The initial number of rows allocated */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The size of every vector, fixed by the first vector added */
+    private int dim;
+    /** The number of rows stored */
+    private int size;
+    /** true if the vectors are stored as int8 */
+    private final boolean quantized;
+    /** The vectors, stored row by row: row i starts at i * dim (null if quantized) */
+    private float[] data;
+    /** The quantized vectors, stored row by row: row i starts at i * dim (null if not quantized) */
+    private byte[] qdata;
+    /** The scale factor of every quantized row: component j of row i is qdata[ i * dim + j ] * scales[ i ] */
+    private float[] scales;
+    /** The literal stored in each row */
+    private Literal[] literals;
+    /** Maps every literal to its row */
+    private Map<Literal, Integer> index;
+    /** Maps every functor and arity to the rows of the literals having them, in row order */
+    private Map<PredicateIndicator, Rows> signatures;
+
+    /** Build an empty store: the dimension is set by the first vector added */
+    public VectorStore() {
+        this( false );
+    }
+
+    /**
+     * Build an empty store: the dimension is set by the first vector added
+     * @param quantized true to store the vectors as int8 with a scale factor for each row
+     */
+    public VectorStore( boolean quantized ) {
+        this.quantized = quantized;
+        this.dim = -1;
+        this.size = 0;
+        if ( quantized ) {
+            this.qdata = new byte[0];
+            this.scales = new float[ INITIAL_CAPACITY ];
+        } else {
+            this.data = new float[0];
+        }
+        this.literals = new Literal[ INITIAL_CAPACITY ];
+        this.index = new HashMap<>();
+        this.signatures = new HashMap<>();
+    }
+
+    /**
+     * Add a vector to the store
+     * @param l the literal the vector belongs to
+     * @param vec the embedding vector (it is stored normalized)
+     * @return the row of the literal (the existing one if the literal was already stored)
+     * @throws IllegalArgumentException if the vector is null, has norm zero or a different size from the stored ones
+     */
+    public int add( Literal l, float[] vec ) {
+        Integer row = index.get( l );
+        if ( row != null )
+            return row;
+        if ( vec == null )
+            throw new IllegalArgumentException( "The embedding of " + l + " is null" );
+        if ( dim == -1 ) {
+            dim = vec.length;
+            if ( quantized )
+                qdata = new byte[ literals.length * dim ];
+            else
+                data = new float[ literals.length * dim ];
+        }
+        if ( vec.length != dim )
+            throw new IllegalArgumentException( "Embeddings have different sizes: " + dim + " and " + vec.length );
+        float[] unit = VectorMath.normalize( vec );
+
+        if ( size == literals.length )
+            grow();
+        if ( quantized )
+            scales[ size ] = quantize( unit, qdata, size * dim );
+        else
+            System.arraycopy( unit, 0, data, size * dim, dim );
+        literals[ size ] = l;
+        index.put( l, size );
+        addSignature( l, size );
+        return size++;
+    }
+
+    /**
+     * Quantizes a vector to int8: the largest component in absolute value becomes 127
+     * @param vec the vector
+     * @param dest the array where the quantized components are written
+     * @param offset the position of the first component in dest
+     * @return the scale factor to multiply the quantized components by
+     */
+    private static float quantize( float[] vec, byte[] dest, int offset ) {
+        float max = 0f;
+        for ( float v : vec )
+            max = Math.max( max, Math.abs( v ) );
+        float scale = max / 127f;
+        for ( int i = 0; i < vec.length; i++ )
+            dest[ offset + i ] = (byte) Math.round( vec[ i ] / scale );
+        return scale;
+    }
+
+    /**
+     * Adds a row to the index of its functor and arity
+     * @param l the literal of the row
+     * @param row the row
+     */
+    private void addSignature( Literal l, int row ) {
+        Rows rows = signatures.computeIfAbsent( new PredicateIndicator( l.getFunctor(), l.getArity() ), pi -> new Rows() );
+        if ( rows.size == rows.rows.length )
+            rows.rows = Arrays.copyOf( rows.rows, rows.size * 2 );
+        rows.rows[ rows.size++ ] = row;
+    }
+
+    /** Doubles the capacity of the store */
+    private void grow() {
+        int capacity = literals.length * 2;
+        if ( quantized ) {
+            qdata = Arrays.copyOf( qdata, capacity * dim );
+            scales = Arrays.copyOf( scales, capacity );
+        } else {
+            data = Arrays.copyOf( data, capacity * dim );
+        }
+        literals = Arrays.copyOf( literals, capacity );
+    }
+
+    /**
+     * Check if the store contains a literal
+     * @param l the literal to check
+     * @return true if contained, false otherwise
+     */
+    public boolean contains( Literal l ) {
+        return index.containsKey( l );
+    }
+
+    /**
+     * Get the row of a literal
+     * @param l the literal
+     * @return the row index, -1 if the literal is not stored
+     */
+    public int rowOf( Literal l ) {
+        Integer row = index.get( l );
+        return row == null ? -1 : row;
+    }
+
+    /**
+     * Get the rows of the literals with a functor and an arity
+     * @param functor the functor
+     * @param arity the arity
+     * @return a new array with the rows in row order, empty if there are none
+     */
+    public int[] rowsOf( String functor, int arity ) {
+        Rows rows = signatures.get( new PredicateIndicator( functor, arity ) );
+        if ( rows == null )
+            return new int[ 0 ];
+        return Arrays.copyOf( rows.rows, rows.size );
+    }
+
+    /**
+     * Get the literal stored in a row
+     * @param row the row index
+     * @return the literal
+     */
+    public Literal literalAt( int row ) {
+        return literals[ row ];
+    }
+
+    /**
+     * Get a copy of the vector of a literal
+     * @param l the literal
+     * @return the unit vector (approximated if the store is quantized), null if the literal is not stored
+     */
+    public float[] get( Literal l ) {
+        int row = rowOf( l );
+        if ( row == -1 )
+            return null;
+        float[] vec = new float[ dim ];
+        if ( quantized ) {
+            for ( int i = 0; i < dim; i++ )
+                vec[ i ] = qdata[ row * dim + i ] * scales[ row ];
+        } else {
+            System.arraycopy( data, row * dim, vec, 0, dim );
+        }
+        return vec;
+    }
+
+    /**
+     * Computes the cosine distance between a row and a query vector
+     * @param row the row to consider
+     * @param q the query vector
+     * @param qNorm the precomputed norm of the query
+     * @return the distance as a double in [0.0, 2.0]
+     */
+    public double distance( int row, float[] q, double qNorm ) {
+        return 1.0 - dot( row, q ) / qNorm;
+    }
+
+    /**
+     * Computes the cosine distance between two rows
+     * @param a the first row
+     * @param b the second row
+     * @return the distance as a double in [0.0, 2.0]
+     */
+    public double distance( int a, int b ) {
+        if ( quantized )
+            return 1.0 - VectorMath.dot( qdata, a * dim, qdata, b * dim, dim ) * scales[ a ] * scales[ b ];
+        return 1.0 - VectorMath.dot( data, a * dim, data, b * dim, dim );
+    }
+
+    /**
+     * Computes the dot product between a row and a query vector
+     * @param row the row to consider
+     * @param q the query vector
+     * @return the dot product
+     */
+    public double dot( int row, float[] q ) {
+        if ( quantized )
+            return VectorMath.dot( qdata, row * dim, q, 0, dim ) * scales[ row ];
+        return VectorMath.dot( data, row * dim, q, 0, dim );
+    }
+
+    /**
+     * Get the number of rows stored
+     * @return the size of the store
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if the vectors are stored as int8
+     * @return true if quantized
+     */
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    /**
+     * Get the memory allocated for the vectors
+     * @return the number of bytes of the vector arrays
+     */
+    public long vectorBytes() {
+        if ( quantized )
+            return qdata.length + 4L * scales.length;
+        return 4L * data.length;
+    }
+
+    /**
+     * Get the size of the stored vectors
+     * @return the dimension, -1 if the store is empty
+     */
+    public int dim() {
+        return dim;
+    }
+
+    /**
+     * Get the list of stored literals in row order
+     * @return a new list of literals
+     */
+    public List<Literal> literals() {
+        List<Literal> list = new ArrayList<>( size );
+        for ( int i = 0; i < size; i++ )
+            list.add( literals[ i ] );
+        return list;
+    }
+
+    /** A growable array of rows */
+    private static class Rows {
+        int[] rows = new int[ 4 ];
+        int size = 0;
+    }
+}
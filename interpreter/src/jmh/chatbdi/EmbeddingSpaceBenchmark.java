@@ -0,0 +1,95 @@
+package chatbdi;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jason.asSyntax.*;
+import jason.runtime.Settings;
+import static jason.asSyntax.ASSyntax.*;
+
+/**
+ * Benchmarks of the embedding space lookups over synthetic spaces.
+ * The vectors are random, so Ollama is not needed; the index is chosen with the annIndex parameter.
+ * Run with: gradle jmh --args='EmbeddingSpaceBenchmark -p size=10000 -p annIndex=hnsw'
+ * @author Andrea Gatti
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g" } )
+public class EmbeddingSpaceBenchmark {
+
+    /** The number of literals in the terms subspace */
+    @Param( { "1000", "10000", "100000", "1000000" } )
+    public int size;
+
+    /** The nearest neighbour index, either 'exact' or 'hnsw' */
+    @Param( { "exact" } )
+    public String annIndex;
+
+    /** The storage of the vectors, either 'none' (float) or 'int8' */
+    @Param( { "none" } )
+    public String quantization;
+
+    /** The size of the embedding vectors */
+    private static final int DIM = 384;
+    /** The number of distinct functors of the synthetic literals */
+    private static final int FUNCTORS = 100;
+    /** The number of agents sharing the space */
+    private static final int AGENTS = 4;
+
+    private EmbeddingSpace space;
+    private float[] query;
+    private Literal nearest;
+    private List<String> allAgents;
+    private List<String> oneAgent;
+    private Literal tell;
+
+    @Setup( Level.Trial )
+    public void setup() {
+        Settings stts = new Settings();
+        stts.addOption( "ann_index", annIndex );
+        stts.addOption( "emb_cache", "none" );
+        stts.addOption( "emb_quantization", quantization );
+        space = new EmbeddingSpace( null, stts );
+
+        Random rnd = new Random( 42 );
+        for ( int i = 0; i < size; i++ ) {
+            Literal t = createLiteral( "f" + ( i % FUNCTORS ), createAtom( "a" + i ), createNumber( i ) );
+            space.addTerm( "ag" + ( i % AGENTS ), t, randomVector( rnd ) );
+        }
+        query = randomVector( rnd );
+        nearest = createLiteral( "f0", createAtom( "a0" ), createNumber( 0 ) );
+        allAgents = new ArrayList<>();
+        oneAgent = List.of( "ag0" );
+        tell = createLiteral( "tell" );
+    }
+
+    private static float[] randomVector( Random rnd ) {
+        float[] v = new float[ DIM ];
+        for ( int i = 0; i < DIM; i++ )
+            v[ i ] = (float) rnd.nextGaussian();
+        return v;
+    }
+
+    @Benchmark
+    public Literal findNearest() {
+        return space.findNearest( allAgents, "terms", query );
+    }
+
+    @Benchmark
+    public Literal findNearestOneAgent() {
+        return space.findNearest( oneAgent, "terms", query );
+    }
+
+    @Benchmark
+    public List<Literal> getExamples() {
+        return space.getExamples( tell, nearest );
+    }
+}
@@ -0,0 +1,261 @@
+package chatbdi;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
+import jason.asSyntax.parser.TokenMgrError;
+import static jason.asSyntax.ASSyntax.*;
+
+/**
+ * Measures the accuracy lost by the int8 quantization of the embedding space on the dataset of tests/data/emb.csv.
+ * For every embedding model and domain of the dataset the literals of tests/input/DOMAIN/literals.csv are embedded
+ * and each sentence is matched with the float store, the int8 store and the int8 store with the exact re-rank:
+ * a match is correct if the literal found has the expected functor and arity.
+ * The embeddings are computed by Ollama, so the models of the dataset must be pulled.
+ * Run with: gradle quantAccuracy --args='../tests/data/emb.csv ../tests/input http://localhost:11434/api/ 10 all-minilm:22m'
+ * (use 'mock' as url to check the tool without Ollama: the numbers are then meaningless)
+ * @author Andrea Gatti
+ */
+public class QuantizationAccuracy {
+
+    private static final HttpClient client = HttpClient.newHttpClient();
+
+    /** The accuracy counters of a group of sentences */
+    private static class Result {
+        int sentences, recorded, exact, int8, reranked, agreeing;
+        double distanceError;
+        long floatBytes, int8Bytes;
+
+        void add( Result r ) {
+            sentences += r.sentences;
+            recorded += r.recorded;
+            exact += r.exact;
+            int8 += r.int8;
+            reranked += r.reranked;
+            agreeing += r.agreeing;
+            distanceError += r.distanceError;
+            floatBytes += r.floatBytes;
+            int8Bytes += r.int8Bytes;
+        }
+
+        String row( String name ) {
+            return String.format( "%-45s %5d %8.3f %8.3f %8.3f %8.3f %8.3f %10.5f %6.2fx",
+                name, sentences, ratio( recorded ), ratio( exact ), ratio( int8 ), ratio( reranked ), ratio( agreeing ),
+                distanceError / Math.max( sentences, 1 ), (double) floatBytes / Math.max( int8Bytes, 1 ) );
+        }
+
+        private double ratio( int n ) {
+            return (double) n / Math.max( sentences, 1 );
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Path csv = Path.of( args.length > 0 ? args[0] : "../tests/data/emb.csv" );
+        Path inputs = Path.of( args.length > 1 ? args[1] : "../tests/input" );
+        String url = args.length > 2 ? args[2] : "http://localhost:11434/api/";
+        int rerank = args.length > 3 ? Integer.parseInt( args[3] ) : 10;
+        List<String> models = args.length > 4 ? Arrays.asList( args[4].split( "," ) ) : null;
+
+        MockOllama mock = null;
+        if ( url.equals( "mock" ) ) {
+            mock = new MockOllama( 0, 384, 42 );
+            mock.start();
+            url = mock.getUrl();
+        }
+
+        // Group the sentences by model and domain
+        Map<String, Map<String, List<String[]>>> groups = new LinkedHashMap<>();
+        List<String> lines = Files.readAllLines( csv );
+        List<String> header = Arrays.asList( parseCsvLine( lines.get( 0 ) ) );
+        int sentenceCol = header.indexOf( "sentence" );
+        int expCol = header.indexOf( "exp" );
+        int correctCol = header.indexOf( "correct" );
+        int modelCol = header.indexOf( "model" );
+        int domainCol = header.indexOf( "domain" );
+        for ( String line : lines.subList( 1, lines.size() ) ) {
+            if ( line.isBlank() )
+                continue;
+            String[] row = parseCsvLine( line );
+            if ( models != null && !models.contains( row[ modelCol ] ) )
+                continue;
+            groups.computeIfAbsent( row[ modelCol ], m -> new LinkedHashMap<>() )
+                  .computeIfAbsent( row[ domainCol ], d -> new ArrayList<>() )
+                  .add( new String[] { row[ sentenceCol ], row[ expCol ], row[ correctCol ] } );
+        }
+
+        System.out.println( "SIMD: " + VectorMath.isVectorized() + ", re-rank candidates: " + rerank );
+        System.out.println( String.format( "%-45s %5s %8s %8s %8s %8s %8s %10s %7s",
+            "model / domain", "n", "recorded", "float", "int8", "rerank", "agree", "dist err", "memory" ) );
+        Result total = new Result();
+        try {
+            for ( String model : groups.keySet() ) {
+                Result modelResult = new Result();
+                for ( Map.Entry<String, List<String[]>> domain : groups.get( model ).entrySet() ) {
+                    Result r = evaluate( url, model, inputs.resolve( domain.getKey() ).resolve( "literals.csv" ), domain.getValue(), rerank );
+                    System.out.println( r.row( model + " / " + domain.getKey() ) );
+                    modelResult.add( r );
+                }
+                System.out.println( modelResult.row( model ) );
+                total.add( modelResult );
+            }
+            System.out.println( total.row( "TOTAL" ) );
+        } finally {
+            if ( mock != null )
+                mock.stop();
+        }
+    }
+
+    /**
+     * Evaluates the sentences of a model and domain
+     * @param url the url of the Ollama API
+     * @param model the embedding model
+     * @param literalsFile the literals of the domain
+     * @param sentences the sentences, with the expected functor/arity and the recorded correctness
+     * @param rerank the number of candidates re-ranked with the exact vectors
+     * @return the counters
+     * @throws Exception if Ollama cannot be reached
+     */
+    private static Result evaluate( String url, String model, Path literalsFile, List<String[]> sentences, int rerank ) throws Exception {
+        List<Literal> literals = new ArrayList<>();
+        List<String> lines = Files.readAllLines( literalsFile );
+        for ( String line : lines.subList( 1, lines.size() ) ) {
+            try {
+                if ( !line.isBlank() )
+                    literals.add( parseLiteral( line.trim() ) );
+            } catch ( ParseException | TokenMgrError e ) {
+                // Some literals of the dataset are not valid Jason terms: the interpreter could not have them either
+            }
+        }
+        List<String> texts = new ArrayList<>();
+        for ( Literal l : literals )
+            texts.add( Tools.preprocess( l ) );
+        List<float[]> litEmbs = embed( url, model, texts );
+
+        VectorStore floats = new VectorStore( false );
+        VectorStore bytes = new VectorStore( true );
+        for ( int i = 0; i < literals.size(); i++ ) {
+            floats.add( literals.get( i ), litEmbs.get( i ) );
+            bytes.add( literals.get( i ), litEmbs.get( i ) );
+        }
+        ExactIndex floatIndex = new ExactIndex( floats );
+        ExactIndex int8Index = new ExactIndex( bytes );
+
+        List<String> queries = new ArrayList<>();
+        for ( String[] s : sentences )
+            queries.add( s[0] );
+        List<float[]> queryEmbs = embed( url, model, queries );
+
+        Result r = new Result();
+        r.floatBytes = floats.vectorBytes();
+        r.int8Bytes = bytes.vectorBytes();
+        for ( int i = 0; i < sentences.size(); i++ ) {
+            float[] q = queryEmbs.get( i );
+            double qNorm = Tools.norm( q );
+            String expected = sentences.get( i )[1];
+            int exactRow = floatIndex.search( q, qNorm, 1, null )[0];
+            int[] int8Rows = int8Index.search( q, qNorm, Math.max( rerank, 1 ), null );
+            // The re-rank uses the exact vectors, as the embedding space does with the cache
+            int rerankedRow = int8Rows[0];
+            for ( int row : int8Rows )
+                if ( floats.distance( row, q, qNorm ) < floats.distance( rerankedRow, q, qNorm ) )
+                    rerankedRow = row;
+
+            r.sentences++;
+            if ( Boolean.parseBoolean( sentences.get( i )[2] ) )
+                r.recorded++;
+            if ( signature( floats.literalAt( exactRow ) ).equals( expected ) )
+                r.exact++;
+            if ( signature( bytes.literalAt( int8Rows[0] ) ).equals( expected ) )
+                r.int8++;
+            if ( signature( bytes.literalAt( rerankedRow ) ).equals( expected ) )
+                r.reranked++;
+            if ( int8Rows[0] == exactRow )
+                r.agreeing++;
+            r.distanceError += Math.abs( bytes.distance( int8Rows[0], q, qNorm ) - floats.distance( int8Rows[0], q, qNorm ) );
+        }
+        return r;
+    }
+
+    private static String signature( Literal l ) {
+        return l.getFunctor() + "/" + l.getArity();
+    }
+
+    /**
+     * Embeds the texts with the EMBED API
+     * @param url the url of the Ollama API
+     * @param model the embedding model
+     * @param texts the texts
+     * @return the embeddings, in order
+     * @throws IOException if the request fails
+     * @throws InterruptedException if the request is interrupted
+     */
+    private static List<float[]> embed( String url, String model, List<String> texts ) throws IOException, InterruptedException {
+        JSONObject json = new JSONObject().put( "model", model ).put( "input", new JSONArray( texts ) ).put( "stream", false );
+        HttpRequest req = HttpRequest.newBuilder()
+            .uri( URI.create( url + "embed" ) )
+            .header( "Content-Type", "application/json" )
+            .POST( HttpRequest.BodyPublishers.ofString( json.toString() ) )
+            .build();
+        HttpResponse<String> res = client.send( req, HttpResponse.BodyHandlers.ofString() );
+        if ( res.statusCode() != 200 )
+            throw new IOException( "embed answered " + res.statusCode() + ": " + res.body() );
+        JSONArray vecs = new JSONObject( res.body() ).getJSONArray( "embeddings" );
+        List<float[]> embs = new ArrayList<>();
+        for ( int i = 0; i < vecs.length(); i++ ) {
+            JSONArray vec = vecs.getJSONArray( i );
+            float[] emb = new float[ vec.length() ];
+            for ( int j = 0; j < emb.length; j++ )
+                emb[ j ] = vec.getFloat( j );
+            embs.add( emb );
+        }
+        return embs;
+    }
+
+    /**
+     * Splits a CSV line, handling the quoted fields
+     * @param line the line
+     * @return the fields
+     */
+    private static String[] parseCsvLine( String line ) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for ( int i = 0; i < line.length(); i++ ) {
+            char c = line.charAt( i );
+            if ( quoted ) {
+                if ( c == '"' && i + 1 < line.length() && line.charAt( i + 1 ) == '"' ) {
+                    field.append( '"' );
+                    i++;
+                } else if ( c == '"' ) {
+                    quoted = false;
+                } else {
+                    field.append( c );
+                }
+            } else if ( c == '"' ) {
+                quoted = true;
+            } else if ( c == ',' ) {
+                fields.add( field.toString() );
+                field.setLength( 0 );
+            } else {
+                field.append( c );
+            }
+        }
+        fields.add( field.toString() );
+        return fields.toArray( new String[0] );
+    }
+}
@@ -0,0 +1,91 @@
+package chatbdi;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import jason.asSyntax.*;
+import static jason.asSyntax.ASSyntax.*;
+
+/**
+ * Benchmarks of the static helpers in Tools used on every translation.
+ * Run with: gradle jmh --args='ToolsBenchmark'
+ * @author Andrea Gatti
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ToolsBenchmark {
+
+    /** The size of the embedding vectors */
+    @Param( { "384", "1024" } )
+    public int dim;
+
+    private Literal literal;
+    private LogicalFormula formula;
+    private List<Double> embList1, embList2;
+    private float[] emb1, emb2;
+    private List<Map<String, Term>> examples;
+    private JSONObject json;
+
+    @Setup
+    public void setup() throws Exception {
+        literal = parseLiteral( "deliverParcel(\"room_12\", parcel(box, 3), [fragile, urgent], 4.5)" );
+        formula = parseFormula( "at(X, Y) & .member(Z, [a, b, c]) & not busy(X) & battery(B) & B > 20" );
+
+        Random rnd = new Random( 42 );
+        emb1 = new float[ dim ];
+        emb2 = new float[ dim ];
+        embList1 = new ArrayList<>( dim );
+        embList2 = new ArrayList<>( dim );
+        for ( int i = 0; i < dim; i++ ) {
+            emb1[ i ] = (float) rnd.nextGaussian();
+            emb2[ i ] = (float) rnd.nextGaussian();
+            embList1.add( (double) emb1[ i ] );
+            embList2.add( (double) emb2[ i ] );
+        }
+
+        examples = new ArrayList<>();
+        for ( String ex : List.of( "move(robot1, kitchen, 3)", "move(robot2, \"hall\", 5)", "move(_, office, X)" ) )
+            examples.add( Tools.termToMap( parseLiteral( ex ) ) );
+        json = new JSONObject( "{\"functor\": \"move\", \"arg0\": \"robot1\", \"arg1\": \"kitchen\", \"arg2\": 3}" );
+    }
+
+    @Benchmark
+    public String preprocess() {
+        return Tools.preprocess( literal );
+    }
+
+    @Benchmark
+    public double cosineDistanceList() {
+        return Tools.cosineDistance( embList1, embList2 );
+    }
+
+    @Benchmark
+    public double cosineDistanceArray() {
+        return Tools.cosineDistance( emb1, emb2 );
+    }
+
+    @Benchmark
+    public JSONObject genJSONSchema() {
+        return Tools.genJSONSchema( examples );
+    }
+
+    @Benchmark
+    public Literal jsonToTerm() throws Exception {
+        return Tools.jsonToTerm( json );
+    }
+
+    @Benchmark
+    public List<Pred> formulaToList() {
+        return Tools.formulaToList( formula );
+    }
+}
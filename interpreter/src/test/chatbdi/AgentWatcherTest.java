@@ -0,0 +1,96 @@
+package chatbdi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jason.asSemantics.Agent;
+import jason.bb.BeliefBase;
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the changes of an agent applied to the embedding space by its AgentWatcher
+ * @author Andrea Gatti
+ */
+class AgentWatcherTest {
+
+    private EmbeddingSpace space;
+    private Agent ag;
+    private AgentWatcher watcher;
+
+    @BeforeEach
+    void watchAgent() throws Exception {
+        space = new EmbeddingSpace( MockSettings.ollama( MockSettings.settings() ), MockSettings.settings() );
+        ag = new Agent();
+        ag.initAg();
+        watcher = new AgentWatcher( "bob", ag );
+        watcher.install();
+    }
+
+    @AfterEach
+    void closeSpace() {
+        watcher.uninstall();
+        space.close();
+    }
+
+    @Test
+    void addsTheNewBeliefsAndPlans() throws Exception {
+        assertFalse( watcher.hasChanges() );
+        ag.getBB().add( parseLiteral( "at(kitchen)" ) );
+        ag.getPL().add( parsePlan( "+!go(X) <- .print(X)." ) );
+        assertTrue( watcher.hasChanges() );
+        watcher.drainTo( space );
+        assertFalse( watcher.hasChanges() );
+        assertTrue( space.isInAgDomain( "bob", parseLiteral( "at(kitchen)" ) ) );
+        assertTrue( space.containsPlan( parseLiteral( "go(X)" ) ) );
+        assertTrue( space.isInAgDomain( "bob", parseLiteral( "go(X)" ) ) );
+    }
+
+    @Test
+    void removesTheBeliefsNoLongerThere() throws Exception {
+        ag.getBB().add( parseLiteral( "at(kitchen)" ) );
+        watcher.drainTo( space );
+        ag.getBB().remove( parseLiteral( "at(kitchen)" ) );
+        watcher.drainTo( space );
+        assertFalse( space.isInAgDomain( "bob", parseLiteral( "at(kitchen)" ) ) );
+        // The embedding stays in the space
+        assertTrue( space.containsTerm( parseLiteral( "at(kitchen)" ) ) );
+    }
+
+    @Test
+    void removesThePlansWithoutOtherPlansForTheTrigger() throws Exception {
+        ag.getPL().add( parsePlan( "@a +!go(X) : X > 1 <- .print(X)." ) );
+        ag.getPL().add( parsePlan( "@b +!go(X) <- .print(none)." ) );
+        watcher.drainTo( space );
+        ag.getPL().remove( createAtom( "a" ) );
+        watcher.drainTo( space );
+        assertTrue( space.isInAgDomain( "bob", parseLiteral( "go(X)" ) ), "another plan has the same trigger" );
+        ag.getPL().remove( createAtom( "b" ) );
+        watcher.drainTo( space );
+        assertFalse( space.isInAgDomain( "bob", parseLiteral( "go(X)" ) ) );
+    }
+
+    @Test
+    void rebuildsTheDomainWhenTheBeliefBaseIsCleared() throws Exception {
+        ag.getBB().add( parseLiteral( "at(kitchen)" ) );
+        ag.getBB().add( parseLiteral( "holding(cup)" ) );
+        watcher.drainTo( space );
+        ag.getBB().clear();
+        ag.getBB().add( parseLiteral( "at(hall)" ) );
+        watcher.drainTo( space );
+        assertFalse( space.isInAgDomain( "bob", parseLiteral( "at(kitchen)" ) ) );
+        assertFalse( space.isInAgDomain( "bob", parseLiteral( "holding(cup)" ) ) );
+        assertTrue( space.isInAgDomain( "bob", parseLiteral( "at(hall)" ) ) );
+    }
+
+    @Test
+    void uninstallRestoresTheBeliefBase() throws Exception {
+        BeliefBase tracking = ag.getBB();
+        watcher.uninstall();
+        assertNotSame( tracking, ag.getBB() );
+        ag.getBB().add( parseLiteral( "at(kitchen)" ) );
+        assertFalse( watcher.hasChanges() );
+    }
+}
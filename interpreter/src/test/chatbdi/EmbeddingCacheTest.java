@@ -0,0 +1,97 @@
+package chatbdi;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the persistent embedding cache
+ * @author Andrea Gatti
+ */
+class EmbeddingCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsTheVectorsAcrossReopens() throws Exception {
+        Path file = dir.resolve( "sub/emb.cache" );
+        EmbeddingCache cache = EmbeddingCache.open( file, "m" );
+        cache.put( "hello", new float[] { 1, 2, 3 } );
+        cache.put( "wörld", new float[] { 4, 5, 6 } );
+        assertArrayEquals( new float[] { 4, 5, 6 }, cache.get( "wörld" ) );
+        cache.close();
+
+        cache = EmbeddingCache.open( file, "m" );
+        assertEquals( 2, cache.size() );
+        assertArrayEquals( new float[] { 1, 2, 3 }, cache.get( "hello" ) );
+        cache.put( "again", new float[] { 7, 8, 9 } );
+        assertArrayEquals( new float[] { 7, 8, 9 }, cache.get( "again" ), "a vector appended after the mapping is read from the file" );
+        assertArrayEquals( new float[] { 4, 5, 6 }, cache.get( "wörld" ) );
+        assertNull( cache.get( "missing" ) );
+        cache.close();
+    }
+
+    @Test
+    void resetsTheFileWhenTheModelChanges() throws Exception {
+        Path file = dir.resolve( "emb.cache" );
+        EmbeddingCache cache = EmbeddingCache.open( file, "m1" );
+        cache.put( "hello", new float[] { 1, 2, 3 } );
+        cache.close();
+        cache = EmbeddingCache.open( file, "m2" );
+        assertEquals( 0, cache.size() );
+        assertNull( cache.get( "hello" ) );
+        cache.put( "hello", new float[] { 1, 2 } );
+        cache.close();
+        cache = EmbeddingCache.open( file, "m2" );
+        assertArrayEquals( new float[] { 1, 2 }, cache.get( "hello" ) );
+        cache.close();
+    }
+
+    @Test
+    void sharesOneCachePerFile() throws Exception {
+        Path file = dir.resolve( "emb.cache" );
+        EmbeddingCache cache = EmbeddingCache.open( file, "m" );
+        assertSame( cache, EmbeddingCache.open( dir.resolve( "./emb.cache" ), "m" ) );
+        assertThrows( IOException.class, () -> EmbeddingCache.open( file, "other" ) );
+        cache.close();
+        // Still open for the second user
+        cache.put( "x", new float[] { 1 } );
+        cache.close();
+    }
+
+    @Test
+    void discardsAPartialRecord() throws Exception {
+        Path file = dir.resolve( "emb.cache" );
+        EmbeddingCache cache = EmbeddingCache.open( file, "m" );
+        cache.put( "a", new float[] { 1, 2 } );
+        cache.put( "b", new float[] { 3, 4 } );
+        cache.close();
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.WRITE ) ) {
+            channel.truncate( Files.size( file ) - 3 );
+        }
+        cache = EmbeddingCache.open( file, "m" );
+        assertEquals( 1, cache.size() );
+        assertNull( cache.get( "b" ) );
+        cache.put( "c", new float[] { 5, 6 } );
+        cache.close();
+        cache = EmbeddingCache.open( file, "m" );
+        assertArrayEquals( new float[] { 5, 6 }, cache.get( "c" ) );
+        cache.close();
+    }
+
+    @Test
+    void rejectsVectorsOfAnotherSize() throws Exception {
+        EmbeddingCache cache = EmbeddingCache.open( dir.resolve( "emb.cache" ), "m" );
+        cache.put( "a", new float[] { 1, 2 } );
+        assertThrows( IllegalArgumentException.class, () -> cache.put( "b", new float[] { 1, 2, 3 } ) );
+        cache.close();
+    }
+}
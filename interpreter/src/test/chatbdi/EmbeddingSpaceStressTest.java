@@ -0,0 +1,120 @@
+package chatbdi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import jason.asSyntax.Literal;
+import jason.bb.BeliefBase;
+import jason.bb.DefaultBeliefBase;
+import jason.pl.PlanLibrary;
+import jason.runtime.Settings;
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Searches the embedding space from several threads while the updater adds literals, resyncs and removes from the domains
+ * @author Andrea Gatti
+ */
+class EmbeddingSpaceStressTest {
+
+    private static final int DIM = 64;
+    private static final int LITERALS = 3000;
+    private static final int READERS = 4;
+
+    private static float[] randomVector( Random random ) {
+        float[] vec = new float[ DIM ];
+        for ( int i = 0; i < DIM; i++ )
+            vec[ i ] = (float) random.nextGaussian();
+        return vec;
+    }
+
+    /** The literal added by an agent: the agent is its second argument */
+    private static Literal item( int i, String ag ) {
+        return createLiteral( "item", createNumber( i ), createAtom( ag ) );
+    }
+
+    @Test
+    void searchesWhileTheSpaceChanges() throws Exception {
+        Settings stts = MockSettings.settings();
+        // Use the HNSW index from the first literal
+        stts.addOption( "ann_exact_below", "0" );
+        stts.addOption( "hnsw_ef_construction", "64" );
+        EmbeddingSpace space = new EmbeddingSpace( MockSettings.ollama( stts ), stts );
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong searches = new AtomicLong();
+
+        List<Thread> readers = new ArrayList<>();
+        for ( int r = 0; r < READERS; r++ ) {
+            Random random = new Random( r );
+            Thread reader = new Thread( () -> {
+                try {
+                    while ( !done.get() ) {
+                        float[] q = randomVector( random );
+                        // ag1 is never resynced nor removed from: its literals are the ones it added
+                        for ( Neighbour n : space.findNearest( List.of( "ag1" ), "terms", q, 5 ) )
+                            assertEquals( createAtom( "ag1" ), n.getLiteral().getTerm( 1 ), n.getLiteral().toString() );
+                        List<Neighbour> all = space.findNearest( List.of(), "terms", q, 5 );
+                        if ( !all.isEmpty() ) {
+                            Literal nearest = all.get( 0 ).getLiteral();
+                            assertTrue( space.containsTerm( nearest ) );
+                            assertEquals( nearest, space.getExamples( createLiteral( "tell" ), nearest ).get( 0 ) );
+                        }
+                        space.isInAgDomain( "ag0", item( random.nextInt( LITERALS ), "ag0" ) );
+                        space.getVersion( List.of( "ag0", "ag2" ) );
+                        searches.incrementAndGet();
+                    }
+                } catch ( Throwable t ) {
+                    errors.add( t );
+                }
+            } );
+            reader.start();
+            readers.add( reader );
+        }
+
+        Random random = new Random( 42 );
+        long start = System.nanoTime();
+        try {
+            for ( int i = 0; i < LITERALS; i++ ) {
+                String ag = "ag" + i % 4;
+                space.addTerm( ag, item( i, ag ), randomVector( random ) );
+                if ( i % 500 == 499 ) {
+                    // Replace the domain of ag0 with some of its literals, all already embedded
+                    BeliefBase bb = new DefaultBeliefBase();
+                    for ( int j = 0; j < i; j += 8 )
+                        bb.add( item( j, "ag0" ) );
+                    space.resync( "ag0", bb, new PlanLibrary() );
+                    space.removeFromDomain( "ag2", item( i - 1, "ag2" ) );
+                }
+            }
+        } finally {
+            done.set( true );
+            for ( Thread reader : readers )
+                reader.join( 10000 );
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - start );
+
+        try {
+            assertTrue( errors.isEmpty(), () -> "Reader failed: " + errors.peek() );
+            assertTrue( elapsed < 60, "The updater was kept waiting for " + elapsed + "s" );
+            assertTrue( searches.get() > 0 );
+            for ( int i = 0; i < LITERALS; i++ )
+                assertTrue( space.containsTerm( item( i, "ag" + i % 4 ) ) );
+            assertTrue( space.isInAgDomain( "ag0", item( 8, "ag0" ) ) );
+            assertFalse( space.isInAgDomain( "ag0", item( 4, "ag0" ) ), "resync removes the literals left out" );
+            assertFalse( space.isInAgDomain( "ag2", item( 498, "ag2" ) ) );
+            assertTrue( space.isInAgDomain( "ag2", item( 2994, "ag2" ) ) );
+        } finally {
+            space.close();
+        }
+    }
+}
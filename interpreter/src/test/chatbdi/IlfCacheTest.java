@@ -0,0 +1,61 @@
+package chatbdi;
+
+import org.junit.jupiter.api.Test;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the cache of the Illocutionary Forces
+ * @author Andrea Gatti
+ */
+class IlfCacheTest {
+
+    @Test
+    void normalizesMentionsCaseSpacesAndPunctuation() {
+        assertEquals( "is the door open?", IlfCache.normalize( "  @bob Is the   DOOR open ?" ) );
+        assertEquals( "go to the kitchen", IlfCache.normalize( "Go to the kitchen." ) );
+        assertEquals( "stop!", IlfCache.normalize( "stop!!" ) );
+        assertNotEquals( IlfCache.normalize( "the door is open" ), IlfCache.normalize( "the door is open?" ) );
+    }
+
+    @Test
+    void givesACopyOfTheCachedClassification() {
+        IlfCache cache = new IlfCache( 10, Double.NaN );
+        cache.put( "hello", createLiteral( "tell" ), null );
+        assertEquals( createLiteral( "tell" ), cache.get( "hello" ) );
+        assertNotSame( cache.get( "hello" ), cache.get( "hello" ) );
+        assertNull( cache.get( "other" ) );
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsed() {
+        IlfCache cache = new IlfCache( 2, Double.NaN );
+        cache.put( "a", createLiteral( "tell" ), null );
+        cache.put( "b", createLiteral( "tell" ), null );
+        cache.get( "a" );
+        cache.put( "c", createLiteral( "tell" ), null );
+        assertEquals( 2, cache.size() );
+        assertNotNull( cache.get( "a" ) );
+        assertNull( cache.get( "b" ) );
+    }
+
+    @Test
+    void similarityTierReusesNearMessages() {
+        IlfCache cache = new IlfCache( 10, 0.95 );
+        assertTrue( cache.usesSimilarity() );
+        cache.put( "is it open?", createLiteral( "askOne" ), new float[] { 1, 0, 0 } );
+        assertEquals( createLiteral( "askOne" ), cache.getSimilar( new float[] { 2, 0.1f, 0 } ) );
+        assertNull( cache.getSimilar( new float[] { 0, 1, 0 } ) );
+        assertNull( cache.getSimilar( new float[] { 0, 0, 0 } ) );
+    }
+
+    @Test
+    void similarityTierCanBeDisabled() {
+        IlfCache cache = new IlfCache( 10, Double.NaN );
+        assertFalse( cache.usesSimilarity() );
+        cache.put( "is it open?", createLiteral( "askOne" ), new float[] { 1, 0, 0 } );
+        assertNull( cache.getSimilar( new float[] { 1, 0, 0 } ) );
+    }
+}
@@ -0,0 +1,46 @@
+package chatbdi;
+
+import java.net.ConnectException;
+
+import jason.runtime.Settings;
+
+/**
+ * The settings of the tests that need Ollama: the requests are answered by the in-process mock
+ * @author Andrea Gatti
+ */
+final class MockSettings {
+
+    /** The folder of the model files and prompts */
+    private static final String MODELFILES = "src/agt/chatbdi/modelfiles/";
+
+    private MockSettings() {}
+
+    /**
+     * Builds the settings of an interpreter using the mock, without the persistent embedding cache
+     * @return the settings, to which the test can add its own options
+     */
+    static Settings settings() {
+        Settings stts = new Settings();
+        stts.addOption( "nl2log_prompt", MODELFILES + "nl2logPrompt.txt" );
+        stts.addOption( "log2nl_prompt", MODELFILES + "log2nlPrompt.txt" );
+        stts.addOption( "nl2log_model", MODELFILES + "nl2log.txt" );
+        stts.addOption( "log2nl_model", MODELFILES + "log2nl.txt" );
+        stts.addOption( "class_model", MODELFILES + "classifier.txt" );
+        stts.addOption( "gen_model", "gen" );
+        stts.addOption( "emb_model", "emb" );
+        stts.addOption( "ollama_mock", "true" );
+        stts.addOption( "mock_emb_dim", "64" );
+        stts.addOption( "emb_cache", "none" );
+        return stts;
+    }
+
+    /**
+     * Builds an Ollama client answered by the mock
+     * @param stts the settings
+     * @return the client
+     * @throws ConnectException if the mock cannot be started
+     */
+    static Ollama ollama( Settings stts ) throws ConnectException {
+        return new Ollama( new String[] { "tell", "askOne", "askAll", "achieve" }, "test", stts );
+    }
+}
@@ -0,0 +1,88 @@
+package chatbdi;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the nearest neighbour indexes: the HNSW index must find almost all the neighbours of the exact scan
+ * @author Andrea Gatti
+ */
+class NearestIndexTest {
+
+    private static final int SIZE = 2000;
+    private static final int DIM = 32;
+    private static final int K = 10;
+
+    /** Fills a store with random vectors, adding them to the indexes */
+    private static float[][] fill( VectorStore store, NearestIndex... indexes ) {
+        Random random = new Random( 42 );
+        float[][] vecs = new float[ SIZE ][ DIM ];
+        for ( int i = 0; i < SIZE; i++ ) {
+            for ( int j = 0; j < DIM; j++ )
+                vecs[ i ][ j ] = (float) random.nextGaussian();
+            int row = store.add( createLiteral( "n", createNumber( i ) ), vecs[ i ] );
+            for ( NearestIndex index : indexes )
+                index.add( row );
+        }
+        return vecs;
+    }
+
+    @Test
+    void exactIndexReturnsTheNearestFirst() {
+        VectorStore store = new VectorStore();
+        ExactIndex exact = new ExactIndex( store );
+        float[][] vecs = fill( store, exact );
+        int[] found = exact.search( vecs[ 5 ], Tools.norm( vecs[ 5 ] ), K, null );
+        assertEquals( K, found.length );
+        assertEquals( 5, found[ 0 ] );
+        for ( int i = 1; i < found.length; i++ )
+            assertTrue( store.distance( found[ i - 1 ], vecs[ 5 ], Tools.norm( vecs[ 5 ] ) ) <= store.distance( found[ i ], vecs[ 5 ], Tools.norm( vecs[ 5 ] ) ) );
+    }
+
+    @Test
+    void hnswRecallMatchesTheExactScan() {
+        VectorStore store = new VectorStore();
+        ExactIndex exact = new ExactIndex( store );
+        HnswIndex hnsw = new HnswIndex( store, 16, 200, 64, 42 );
+        fill( store, exact, hnsw );
+        Random random = new Random( 1 );
+        int hits = 0;
+        int queries = 100;
+        for ( int q = 0; q < queries; q++ ) {
+            float[] query = new float[ DIM ];
+            for ( int j = 0; j < DIM; j++ )
+                query[ j ] = (float) random.nextGaussian();
+            double norm = Tools.norm( query );
+            Set<Integer> expected = new HashSet<>();
+            for ( int row : exact.search( query, norm, K, null ) )
+                expected.add( row );
+            for ( int row : hnsw.search( query, norm, K, null ) )
+                if ( expected.contains( row ) )
+                    hits++;
+        }
+        double recall = hits / (double) ( queries * K );
+        assertTrue( recall >= 0.9, "recall@" + K + " is " + recall );
+    }
+
+    @Test
+    void searchesRespectTheFilter() {
+        VectorStore store = new VectorStore();
+        ExactIndex exact = new ExactIndex( store );
+        HnswIndex hnsw = new HnswIndex( store, 16, 200, 64, 42 );
+        float[][] vecs = fill( store, exact, hnsw );
+        for ( NearestIndex index : new NearestIndex[] { exact, hnsw } ) {
+            int[] found = index.search( vecs[ 3 ], Tools.norm( vecs[ 3 ] ), K, row -> row % 2 == 0 );
+            assertTrue( found.length > 0 );
+            for ( int row : found )
+                assertEquals( 0, row % 2, index + " returned a filtered row" );
+            assertEquals( 0, index.search( vecs[ 3 ], Tools.norm( vecs[ 3 ] ), K, row -> false ).length );
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package chatbdi;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the compiled prompt templates
+ * @author Andrea Gatti
+ */
+class PromptTemplateTest {
+
+    @TempDir
+    Path dir;
+
+    private PromptTemplate template( String text, boolean reload, String... slots ) throws Exception {
+        Path file = Files.createTempFile( dir, "prompt", ".txt" );
+        Files.writeString( file, text );
+        return PromptTemplate.of( file.toString(), reload, slots );
+    }
+
+    @Test
+    void replacesEveryPlaceholder() throws Exception {
+        PromptTemplate t = template( "From SENDER: CONTENT (SENDER)", false, "SENDER", "CONTENT" );
+        assertEquals( "From bob: hello (bob)", t.render( "bob", "hello" ) );
+    }
+
+    @Test
+    void prefersTheLongestPlaceholder() throws Exception {
+        PromptTemplate t = template( "ILFORCE and ILF", false, "ILF", "ILFORCE" );
+        assertEquals( "force and ilf", t.render( "ilf", "force" ) );
+    }
+
+    @Test
+    void neverScansTheValues() throws Exception {
+        PromptTemplate t = template( "A then B", false, "A", "B" );
+        assertEquals( "B then x", t.render( "B", "x" ) );
+    }
+
+    @Test
+    void rejectsAWrongNumberOfValues() throws Exception {
+        PromptTemplate t = template( "A", false, "A", "B" );
+        assertThrows( IllegalArgumentException.class, () -> t.render( "only one" ) );
+    }
+
+    @Test
+    void sharesTheTemplatesByPath() throws Exception {
+        Path file = dir.resolve( "shared.txt" );
+        Files.writeString( file, "X" );
+        assertSame( PromptTemplate.of( file.toString(), false, "X" ), PromptTemplate.of( dir.resolve( "./shared.txt" ).toString(), false, "X" ) );
+    }
+
+    @Test
+    void reloadsTheEditedFile() throws Exception {
+        Path file = dir.resolve( "reload.txt" );
+        Files.writeString( file, "old X" );
+        PromptTemplate t = PromptTemplate.of( file.toString(), true, "X" );
+        assertEquals( "old 1", t.render( "1" ) );
+        Files.writeString( file, "new X" );
+        long deadline = System.currentTimeMillis() + 20000;
+        while ( !t.render( "1" ).equals( "new 1" ) && System.currentTimeMillis() < deadline )
+            Thread.sleep( 50 );
+        assertEquals( "new 1", t.render( "1" ) );
+    }
+}
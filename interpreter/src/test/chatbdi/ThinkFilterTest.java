@@ -0,0 +1,51 @@
+package chatbdi;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the ThinkFilter on chunked answers
+ * @author Andrea Gatti
+ */
+class ThinkFilterTest {
+
+    /**
+     * Filters a text split in the given chunks
+     * @return the visible text
+     */
+    private static String filter( String... chunks ) {
+        ThinkFilter filter = new ThinkFilter();
+        StringBuilder out = new StringBuilder();
+        for ( String chunk : chunks )
+            out.append( filter.process( chunk ) );
+        return out.append( filter.flush() ).toString();
+    }
+
+    @Test
+    void keepsTextWithoutTags() {
+        assertEquals( "hello world", filter( "hello", " ", "world" ) );
+    }
+
+    @Test
+    void dropsThinkingSection() {
+        assertEquals( "before after", filter( "before <think>secret</think>after" ) );
+    }
+
+    @Test
+    void recognizesTagsSplitBetweenChunks() {
+        assertEquals( "a b", filter( "a <th", "ink>hid", "den</th", "ink>b" ) );
+        assertEquals( "xy", filter( "x", "<", "t", "h", "i", "n", "k", ">", "z", "<", "/", "think", ">", "y" ) );
+    }
+
+    @Test
+    void keepsPartialTagThatIsNotATag() {
+        assertEquals( "a <thing> b", filter( "a <th", "ing> b" ) );
+        assertEquals( "ends with <thi", filter( "ends with <thi" ) );
+    }
+
+    @Test
+    void dropsUnclosedThinkingSection() {
+        assertEquals( "visible", filter( "visible<think>never closed" ) );
+    }
+}
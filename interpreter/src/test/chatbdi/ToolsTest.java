@@ -0,0 +1,122 @@
+package chatbdi;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import jason.asSyntax.Literal;
+import jason.asSyntax.Term;
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the text written by Tools.preprocess, compared with the first implementation that parsed the term strings
+ * @author Andrea Gatti
+ */
+class ToolsTest {
+
+    /**
+     * The first implementation of preprocess: every argument is converted to a string and rewritten by regexes
+     * @param lit the literal to preprocess
+     * @return the text to embed
+     */
+    private static String regexPreprocess( Literal lit ) {
+        String functor = lit.getFunctor().replace( "_", " " ).replace( "my", "your" ) + " ";
+        String terms = "";
+        if ( !lit.hasTerm() )
+            return functor.repeat( 4 );
+        for ( Term t : lit.getTerms() ) {
+            String tStr = t.toString();
+            tStr = tStr.replace( "_", " ");
+            tStr = tStr.replace( "(", " ( " );
+            tStr = tStr.replace( ")", " ) " );
+            tStr = tStr.replace( ",", " , " );
+            tStr = tStr.replace( "my", "your" );
+            tStr = tStr.replaceAll( "([=<>!]+)", " $1 " );
+            tStr = tStr.replaceAll( "\\s+", " " );
+            tStr = tStr.trim();
+            terms += tStr + " ";
+        }
+        return functor.repeat( 4 ) + terms.trim();
+    }
+
+    private static final List<String> LITERALS = List.of(
+        "ready",
+        "my_ready",
+        "at(kitchen)",
+        "at(my_room)",
+        "at(m)",
+        "at(m, yard)",
+        "at(m(y))",
+        "at(m_y)",
+        "at(mm, my, mymy, dummy)",
+        "~at(kitchen)",
+        "at(~near(wall))",
+        "at(house::kitchen)",
+        "at(house::room(my_bed), house::~near(wall))",
+        "house::at(kitchen)",
+        "at(kitchen)[source(self), house::ann(x)]",
+        "at(room(bed)[source(bob)])",
+        "at([])",
+        "at([a, b, my_c])",
+        "at([a | T])",
+        "at([a, [b, c] | T])",
+        "at(\"my  kitchen\")",
+        "at(\"a_b(c)\")",
+        "at(X, _, My_Var)",
+        "at(10, -3.5, 1e10)",
+        "price(X > 10, Y <= 3, Z \\== W)",
+        "check(X = Y, not(X == Y), X >= 1 & Y < 2)",
+        "eval(X + Y * 2, (A - B) / C)",
+        "say(\"hello!\", \"is it <= or >= ?\")",
+        "nested(f(g(h(my_x), [1, 2]), k)[a(b)])"
+    );
+
+    @Test
+    void matchesTheRegexImplementation() throws Exception {
+        for ( String s : LITERALS ) {
+            Literal l = parseLiteral( s );
+            assertEquals( regexPreprocess( l ), Tools.preprocess( l ), s );
+        }
+    }
+
+    @Test
+    void matchesTheRegexImplementationOnRandomLiterals() throws Exception {
+        Random random = new Random( 7 );
+        for ( int i = 0; i < 2000; i++ ) {
+            Literal l = createLiteral( randomName( random ), randomTerm( random, 3 ), randomTerm( random, 3 ) );
+            assertEquals( regexPreprocess( l ), Tools.preprocess( l ), l.toString() );
+        }
+    }
+
+    @Test
+    void writesTheNamespaces() throws Exception {
+        String text = Tools.preprocess( parseLiteral( "at(house::kitchen, house::room(bed))" ) );
+        assertTrue( text.endsWith( "house::kitchen house::room ( bed )" ), text );
+    }
+
+    private static final String[] PARTS = { "my", "m", "y", "_", "a", "room", "x1", "dummy" };
+
+    private static String randomName( Random random ) {
+        StringBuilder sb = new StringBuilder( "a" );
+        for ( int i = random.nextInt( 4 ); i >= 0; i-- )
+            sb.append( PARTS[ random.nextInt( PARTS.length ) ] );
+        return sb.toString();
+    }
+
+    private static Term randomTerm( Random random, int depth ) throws Exception {
+        int kind = random.nextInt( depth == 0 ? 4 : 8 );
+        switch ( kind ) {
+            case 0: return createAtom( randomName( random ) );
+            case 1: return createNumber( random.nextInt( 100 ) );
+            case 2: return createString( randomName( random ) + " " + PARTS[ random.nextInt( PARTS.length ) ] );
+            case 3: return parseTerm( "My" + randomName( random ) );
+            case 4: return createLiteral( randomName( random ), randomTerm( random, depth - 1 ) ).setNegated( Literal.LNeg );
+            case 5: return createList( randomTerm( random, depth - 1 ), randomTerm( random, depth - 1 ) );
+            case 6: return parseLiteral( "ns" + random.nextInt( 3 ) + "::" + randomName( random ) ).addTerms( randomTerm( random, depth - 1 ) );
+            default: return createStructure( randomName( random ), randomTerm( random, depth - 1 ), randomTerm( random, depth - 1 ) );
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package chatbdi;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import jason.asSyntax.Literal;
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the invalidation of the cached translations when the embedding space changes
+ * @author Andrea Gatti
+ */
+class TranslationCacheTest {
+
+    private EmbeddingSpace space;
+
+    @BeforeEach
+    void createSpace() throws Exception {
+        space = new EmbeddingSpace( MockSettings.ollama( MockSettings.settings() ), MockSettings.settings() );
+        space.addTerm( "bob", parseLiteral( "at(kitchen)" ) );
+        space.addTerm( "alice", parseLiteral( "price(book, 10)" ) );
+    }
+
+    @AfterEach
+    void closeSpace() {
+        space.close();
+    }
+
+    /** Caches the translation of a message sent to bob */
+    private TranslationCache cacheFor( String key ) throws Exception {
+        Literal ilf = createLiteral( "askOne" );
+        Literal nearest = parseLiteral( "at(kitchen)" );
+        TranslationCache cache = new TranslationCache( 10 );
+        cache.put( key, new TranslationCache.Entry( ilf, parseLiteral( "at(X)" ), nearest,
+                space.getVersion( List.of( "bob" ) ), space.getExamplesVersion( ilf, nearest ) ) );
+        return cache;
+    }
+
+    @Test
+    void keysIgnoreMentionsSpacesAndReceiverOrder() {
+        assertEquals( TranslationCache.key( "@bob where is   it", List.of( "bob", "alice" ) ),
+                      TranslationCache.key( "where is it @bob", List.of( "alice", "bob" ) ) );
+        assertNotEquals( TranslationCache.key( "where is it", List.of( "bob" ) ), TranslationCache.key( "where is it", List.of( "alice" ) ) );
+    }
+
+    @Test
+    void givesTheTranslationWhileTheSpaceIsUnchanged() throws Exception {
+        String key = TranslationCache.key( "where is it", List.of( "bob" ) );
+        TranslationCache cache = cacheFor( key );
+        TranslationCache.Entry entry = cache.get( key, space, List.of( "bob" ) );
+        assertNotNull( entry );
+        assertEquals( parseLiteral( "at(X)" ), entry.getTerm() );
+        // Another agent learning an unrelated literal does not matter
+        space.addTerm( "alice", parseLiteral( "color(red)" ) );
+        assertNotNull( cache.get( key, space, List.of( "bob" ) ) );
+    }
+
+    @Test
+    void dropsTheTranslationWhenTheReceiverDomainChanges() throws Exception {
+        String key = TranslationCache.key( "where is it", List.of( "bob" ) );
+        TranslationCache cache = cacheFor( key );
+        space.addTerm( "bob", parseLiteral( "holding(cup)" ) );
+        assertNull( cache.get( key, space, List.of( "bob" ) ) );
+        assertTrue( cache.toString().contains( "stale=1" ) );
+    }
+
+    @Test
+    void dropsTheTranslationWhenTheExamplesChange() throws Exception {
+        String key = TranslationCache.key( "where is it", List.of( "bob" ) );
+        TranslationCache cache = cacheFor( key );
+        // A literal with the signature of the nearest one changes the examples, whoever knows it
+        space.addTerm( "alice", parseLiteral( "at(garden)" ) );
+        assertNull( cache.get( key, space, List.of( "bob" ) ) );
+    }
+
+    @Test
+    void dropsTheTranslationWhenALiteralLeavesTheDomain() throws Exception {
+        String key = TranslationCache.key( "where is it", List.of( "bob" ) );
+        TranslationCache cache = cacheFor( key );
+        space.removeFromDomain( "bob", parseLiteral( "at(kitchen)" ) );
+        assertNull( cache.get( key, space, List.of( "bob" ) ) );
+    }
+}
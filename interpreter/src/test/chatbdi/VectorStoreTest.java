@@ -0,0 +1,91 @@
+package chatbdi;
+
+import org.junit.jupiter.api.Test;
+
+import jason.asSyntax.Literal;
+import static jason.asSyntax.ASSyntax.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the VectorStore, with float and int8 vectors
+ * @author Andrea Gatti
+ */
+class VectorStoreTest {
+
+    @Test
+    void storesUnitVectorsOncePerLiteral() throws Exception {
+        VectorStore store = new VectorStore();
+        Literal a = parseLiteral( "at(kitchen)" );
+        int row = store.add( a, new float[] { 3, 4 } );
+        assertEquals( row, store.add( a, new float[] { 1, 0 } ), "a stored literal keeps its row" );
+        assertEquals( 1, store.size() );
+        assertArrayEquals( new float[] { 0.6f, 0.8f }, store.get( a ), 1e-6f );
+        assertEquals( a, store.literalAt( row ) );
+        assertTrue( store.contains( a ) );
+        assertEquals( -1, store.rowOf( parseLiteral( "at(hall)" ) ) );
+        assertNull( store.get( parseLiteral( "at(hall)" ) ) );
+    }
+
+    @Test
+    void rejectsInvalidVectors() throws Exception {
+        VectorStore store = new VectorStore();
+        store.add( parseLiteral( "a" ), new float[] { 1, 0, 0 } );
+        assertThrows( IllegalArgumentException.class, () -> store.add( parseLiteral( "b" ), null ) );
+        assertThrows( IllegalArgumentException.class, () -> store.add( parseLiteral( "c" ), new float[] { 1, 0 } ) );
+        assertThrows( IllegalArgumentException.class, () -> store.add( parseLiteral( "d" ), new float[] { 0, 0, 0 } ) );
+        assertEquals( 1, store.size() );
+    }
+
+    @Test
+    void indexesRowsBySignature() throws Exception {
+        VectorStore store = new VectorStore();
+        store.add( parseLiteral( "at(kitchen)" ), new float[] { 1, 0 } );
+        store.add( parseLiteral( "price(book, 10)" ), new float[] { 0, 1 } );
+        store.add( parseLiteral( "at(hall)" ), new float[] { 1, 1 } );
+        assertArrayEquals( new int[] { 0, 2 }, store.rowsOf( "at", 1 ) );
+        assertArrayEquals( new int[] { 1 }, store.rowsOf( "price", 2 ) );
+        assertArrayEquals( new int[0], store.rowsOf( "at", 2 ) );
+    }
+
+    @Test
+    void growsBeyondTheInitialCapacity() throws Exception {
+        VectorStore store = new VectorStore();
+        for ( int i = 0; i < 1000; i++ )
+            store.add( createLiteral( "n", createNumber( i ) ), new float[] { 1, i } );
+        assertEquals( 1000, store.size() );
+        for ( int i = 0; i < 1000; i += 97 )
+            assertEquals( i, store.rowOf( createLiteral( "n", createNumber( i ) ) ) );
+    }
+
+    @Test
+    void computesCosineDistances() throws Exception {
+        VectorStore store = new VectorStore();
+        int a = store.add( parseLiteral( "a" ), new float[] { 1, 0 } );
+        int b = store.add( parseLiteral( "b" ), new float[] { 0, 2 } );
+        int c = store.add( parseLiteral( "c" ), new float[] { -1, 0 } );
+        assertEquals( 1.0, store.distance( a, b ), 1e-6 );
+        assertEquals( 2.0, store.distance( a, c ), 1e-6 );
+        assertEquals( 0.0, store.distance( a, new float[] { 5, 0 }, 5 ), 1e-6 );
+    }
+
+    @Test
+    void quantizedDistancesAreClose() throws Exception {
+        VectorStore exact = new VectorStore( false );
+        VectorStore quantized = new VectorStore( true );
+        java.util.Random random = new java.util.Random( 7 );
+        float[][] vecs = new float[ 50 ][ 32 ];
+        for ( int i = 0; i < vecs.length; i++ ) {
+            for ( int j = 0; j < 32; j++ )
+                vecs[ i ][ j ] = (float) random.nextGaussian();
+            exact.add( createLiteral( "n", createNumber( i ) ), vecs[ i ] );
+            quantized.add( createLiteral( "n", createNumber( i ) ), vecs[ i ] );
+        }
+        assertTrue( quantized.isQuantized() );
+        assertTrue( quantized.vectorBytes() < exact.vectorBytes() );
+        for ( int i = 1; i < vecs.length; i++ ) {
+            assertEquals( exact.distance( 0, i ), quantized.distance( 0, i ), 0.02 );
+            assertEquals( exact.distance( i, vecs[ 0 ], Tools.norm( vecs[ 0 ] ) ), quantized.distance( i, vecs[ 0 ], Tools.norm( vecs[ 0 ] ) ), 0.02 );
+        }
+    }
+}